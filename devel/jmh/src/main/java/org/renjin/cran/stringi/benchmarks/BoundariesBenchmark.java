@@ -0,0 +1,65 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.cran.stringi.stringi;
+import org.renjin.sexp.IntArrayVector;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+
+/**
+ * Text boundary analysis natives
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundariesBenchmark {
+
+  private static final SEXP NO_LIMIT = new IntArrayVector(-1);
+
+  /**
+   * stri_opts_brkiter(type=...)
+   */
+  @State(Scope.Thread)
+  public static class Options {
+
+    @Param({ "character", "line_break", "sentence", "word" })
+    public String type;
+
+    SEXP opts_brkiter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      final ListVector.NamedBuilder builder = new ListVector.NamedBuilder();
+      builder.add("type", StringVector.valueOf(type));
+      opts_brkiter = builder.build();
+    }
+  }
+
+  @Benchmark
+  public SEXP countBoundaries(Inputs inputs, Options options) {
+    return stringi.stri_count_boundaries(inputs.str, options.opts_brkiter);
+  }
+
+  @Benchmark
+  public SEXP splitBoundaries(Inputs inputs, Options options) {
+    return stringi.stri_split_boundaries(inputs.str, NO_LIMIT, LogicalVector.FALSE, LogicalVector.FALSE,
+        options.opts_brkiter);
+  }
+}
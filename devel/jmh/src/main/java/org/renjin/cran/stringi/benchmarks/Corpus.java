@@ -0,0 +1,196 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark input generator
+ *
+ * The "generated" corpus follows devel/generate_large_textfile.R: words drawn
+ * with replacement from the first lines of Goethe's Faust, separated by spaces.
+ * The "pan_tadeusz" corpus consists of fragments of devel/benchmarks/pan_tadeusz_15.txt
+ * (override its location with -Dstringi.corpus=...). Both are non-ASCII; their
+ * ASCII variants have diacritics stripped.
+ */
+final class Corpus {
+
+  static final String GENERATED = "generated";
+  static final String PAN_TADEUSZ = "pan_tadeusz";
+
+  static final String CORPUS_PROPERTY = "stringi.corpus";
+  static final String DEFAULT_CORPUS_FILE = "../benchmarks/pan_tadeusz_15.txt";
+
+  private static final long SEED = 123L;
+
+  private static final String FAUST = "ihr naht euch wieder schwankende gestalten\n"
+      + "die früh sich einst dem trüben blick gezeigt\n"
+      + "versuch ich wohl euch diesmal festzuhalten\n"
+      + "fühl ich mein herz noch jenem wahn geneigt\n"
+      + "ihr drängt euch zu  nun gut so mögt ihr walten\n"
+      + "wie ihr aus dunst und nebel um mich steigt\n"
+      + "mein busen fühlt sich jugendlich erschüttert\n"
+      + "vom zauberhauch der euren zug umwittert\n"
+      + "ihr bringt mit euch die bilder froher tage\n"
+      + "und manche liebe schatten steigen auf\n"
+      + "gleich einer alten halbverklungnen sage\n"
+      + "kommt erste lieb und freundschaft mit herauf\n"
+      + "der schmerz wird neu es wiederholt die klage\n"
+      + "des lebens labyrinthisch irren lauf\n"
+      + "und nennt die guten die um schöne stunden\n"
+      + "vom glück getäuscht vor mir hinweggeschwunden\n"
+      + "sie hören nicht die folgenden gesänge\n"
+      + "die seelen denen ich die ersten sang\n"
+      + "zerstoben ist das freundliche gedränge\n"
+      + "verklungen ach  der erste widerklang\n"
+      + "mein lied ertönt der unbekannten menge\n"
+      + "ihr beifall selbst macht meinem herzen bang\n"
+      + "und was sich sonst an meinem lied erfreuet\n"
+      + "wenn es noch lebt irrt in der welt zerstreuet\n"
+      + "und mich ergreift ein längst entwöhntes sehnen\n"
+      + "nach jenem stillen ernsten geisterreich\n"
+      + "es schwebet nun in unbestimmten tönen\n"
+      + "mein lispelnd lied der äolsharfe gleich\n"
+      + "ein schauer faßt mich träne folgt den tränen\n"
+      + "das strenge herz es fühlt sich mild und weich\n"
+      + "was ich besitze seh ich wie im weiten\n"
+      + "und was verschwand wird mir zu wirklichkeiten";
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern NON_LETTERS = Pattern.compile("\\P{L}+");
+  private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+  private final String text;
+  private final String[] words;
+  private final Random random = new Random(SEED);
+
+  private Corpus(String text, String[] words) {
+    this.text = text;
+    this.words = words;
+  }
+
+  /**
+   * @param name
+   *          GENERATED or PAN_TADEUSZ
+   * @param ascii
+   *          strip diacritics
+   */
+  static Corpus open(String name, boolean ascii) throws IOException {
+    if (GENERATED.equals(name)) {
+      final String source = ascii ? toAscii(FAUST) : FAUST;
+      return new Corpus(null, WHITESPACE.split(source.trim()));
+    } else if (PAN_TADEUSZ.equals(name)) {
+      final File file = new File(System.getProperty(CORPUS_PROPERTY, DEFAULT_CORPUS_FILE));
+      final StringBuilder sb = new StringBuilder();
+      for (String line : Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))) {
+        if (!line.trim().isEmpty()) {
+          sb.append(line.trim()).append('\n');
+        }
+      }
+      final String source = ascii ? toAscii(sb.toString()) : sb.toString();
+      final List<String> words = new ArrayList<String>();
+      for (String word : NON_LETTERS.split(source)) {
+        if (!word.isEmpty()) {
+          words.add(word.toLowerCase());
+        }
+      }
+      return new Corpus(source, words.toArray(new String[words.size()]));
+    } else {
+      throw new IllegalArgumentException("unknown corpus: " + name);
+    }
+  }
+
+  /**
+   * @return n strings of exactly the given length (in UTF-16 code units)
+   */
+  String[] strings(int n, int length) {
+    final String[] result = new String[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = (text == null) ? sample(length) : fragment(length);
+    }
+    return result;
+  }
+
+  /**
+   * @return n words drawn at random from the corpus
+   */
+  String[] words(int n) {
+    final String[] result = new String[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = words[random.nextInt(words.length)];
+    }
+    return result;
+  }
+
+  /**
+   * @return the most frequent word of at least 3 letters
+   */
+  String commonWord() {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    String best = words[0];
+    int bestCount = 0;
+    for (String word : words) {
+      if (word.length() >= 3) {
+        final Integer count = counts.get(word);
+        final int updated = (count == null) ? 1 : count + 1;
+        counts.put(word, updated);
+        if (updated > bestCount) {
+          best = word;
+          bestCount = updated;
+        }
+      }
+    }
+    return best;
+  }
+
+  private String sample(int length) {
+    final StringBuilder sb = new StringBuilder(length + 32);
+    while (sb.length() < length) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(words[random.nextInt(words.length)]);
+    }
+    sb.setLength(length);
+    return sb.toString();
+  }
+
+  private String fragment(int length) {
+    final StringBuilder sb = new StringBuilder(length);
+    int start = random.nextInt(text.length());
+    while (sb.length() < length) {
+      final int end = Math.min(text.length(), start + length - sb.length());
+      sb.append(text, start, end);
+      start = 0;
+    }
+    return sb.toString();
+  }
+
+  private static String toAscii(String s) {
+    final String stripped = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("");
+    final StringBuilder sb = new StringBuilder(stripped.length());
+    for (int i = 0; i < stripped.length(); i++) {
+      final char c = stripped.charAt(i);
+      if (c < 128) {
+        sb.append(c);
+      } else if (c == 'ß') {
+        sb.append("ss");
+      } else if (c == 'ł') {
+        sb.append('l');
+      } else if (c == 'Ł') {
+        sb.append('L');
+      } else {
+        sb.append('?');
+      }
+    }
+    return sb.toString();
+  }
+}
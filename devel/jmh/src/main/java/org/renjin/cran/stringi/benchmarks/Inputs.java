@@ -0,0 +1,67 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.renjin.eval.Session;
+import org.renjin.eval.SessionBuilder;
+import org.renjin.primitives.Native;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringArrayVector;
+
+/**
+ * Strings shared by all the benchmarks
+ *
+ * The natives report warnings and read options through the current Renjin
+ * context, so each benchmark thread gets its own session.
+ */
+@State(Scope.Thread)
+public class Inputs {
+
+  @Param({ Corpus.GENERATED, Corpus.PAN_TADEUSZ })
+  public String corpus;
+
+  @Param({ "ascii", "non-ascii" })
+  public String charset;
+
+  @Param({ "100", "10000" })
+  public int vectorLength;
+
+  @Param({ "10", "100", "1000" })
+  public int stringLength;
+
+  /** value of the stringi.parallel option */
+  @Param({ "false" })
+  public boolean parallel;
+
+  Session session;
+  Corpus source;
+
+  /** strings to search in / transform */
+  SEXP str;
+  /** list(words, str), as passed to stri_join */
+  SEXP strlist;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    session = new SessionBuilder().build();
+    session.getOptions().set("stringi.parallel", LogicalVector.valueOf(parallel));
+    Native.CURRENT_CONTEXT.set(session.getTopLevelContext());
+
+    source = Corpus.open(corpus, "ascii".equals(charset));
+    str = new StringArrayVector(source.strings(vectorLength, stringLength));
+    strlist = new ListVector(new StringArrayVector(source.words(Math.max(1, vectorLength / 10))), str);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Native.CURRENT_CONTEXT.remove();
+  }
+}
@@ -0,0 +1,51 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.cran.stringi.stringi;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.Null;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+
+/**
+ * Concatenation natives: join, flatten
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinBenchmark {
+
+  private static final SEXP SPACE = StringVector.valueOf(" ");
+  private static final SEXP EMPTY = StringVector.valueOf("");
+  private static final SEXP COMMA = StringVector.valueOf(", ");
+
+  @Benchmark
+  public SEXP join(Inputs inputs) {
+    return stringi.stri_join(inputs.strlist, SPACE, Null.INSTANCE, LogicalVector.FALSE);
+  }
+
+  @Benchmark
+  public SEXP joinCollapse(Inputs inputs) {
+    return stringi.stri_join(inputs.strlist, SPACE, COMMA, LogicalVector.FALSE);
+  }
+
+  @Benchmark
+  public SEXP flatten(Inputs inputs) {
+    return stringi.stri_flatten(inputs.str, EMPTY);
+  }
+
+  @Benchmark
+  public SEXP flattenCollapse(Inputs inputs) {
+    return stringi.stri_flatten(inputs.str, COMMA);
+  }
+}
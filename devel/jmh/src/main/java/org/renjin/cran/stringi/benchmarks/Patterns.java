@@ -0,0 +1,54 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringArrayVector;
+
+/**
+ * Search patterns, drawn from the same corpus as the searched strings
+ */
+@State(Scope.Thread)
+public class Patterns {
+
+  static final String RECYCLE_SINGLE = "single"; // one pattern recycled over all the strings
+  static final String RECYCLE_NONE = "none";     // one pattern per string
+
+  static final int ALTERNATIVES = 5;
+
+  @Param({ RECYCLE_SINGLE, RECYCLE_NONE })
+  public String recycling;
+
+  /** words, as fixed patterns */
+  SEXP fixed;
+  /** words followed by any letters, as regexes */
+  SEXP regex;
+  /** alternations of ALTERNATIVES words, as regexes */
+  SEXP alternation;
+
+  @Setup(Level.Trial)
+  public void setUp(Inputs inputs) {
+    final String[] words = RECYCLE_SINGLE.equals(recycling)
+        ? new String[] { inputs.source.commonWord() }
+        : inputs.source.words(inputs.vectorLength);
+    final String[] regexes = new String[words.length];
+    for (int i = 0; i < words.length; i++) {
+      regexes[i] = words[i] + "\\p{L}*";
+    }
+    final String[] alternatives = inputs.source.words(ALTERNATIVES * words.length);
+    final String[] alternations = new String[words.length];
+    for (int i = 0; i < words.length; i++) {
+      final StringBuilder alternation = new StringBuilder(alternatives[ALTERNATIVES * i]);
+      for (int k = 1; k < ALTERNATIVES; k++) {
+        alternation.append('|').append(alternatives[ALTERNATIVES * i + k]);
+      }
+      alternations[i] = alternation.toString();
+    }
+    fixed = new StringArrayVector(words);
+    regex = new StringArrayVector(regexes);
+    alternation = new StringArrayVector(alternations);
+  }
+}
@@ -0,0 +1,78 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.cran.stringi.stringi;
+import org.renjin.sexp.IntArrayVector;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+
+/**
+ * Regex natives on both engines: java.util.regex, and the automaton of opts_regex(linear_time=TRUE)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegexBenchmark {
+
+  private static final SEXP NO_LIMIT = new IntArrayVector(-1);
+  private static final SEXP REPLACEMENT = StringVector.valueOf("#");
+
+  /**
+   * stri_opts_regex(linear_time=...)
+   */
+  @State(Scope.Thread)
+  public static class Options {
+
+    @Param({ "false", "true" })
+    public boolean linearTime;
+
+    SEXP opts_regex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      final ListVector.NamedBuilder builder = new ListVector.NamedBuilder();
+      builder.add("linear_time", LogicalVector.valueOf(linearTime));
+      opts_regex = builder.build();
+    }
+  }
+
+  @Benchmark
+  public SEXP detectAlternation(Inputs inputs, Patterns patterns, Options options) {
+    return stringi.stri_detect_regex(inputs.str, patterns.alternation, LogicalVector.FALSE, options.opts_regex);
+  }
+
+  @Benchmark
+  public SEXP replaceAllAlternation(Inputs inputs, Patterns patterns, Options options) {
+    return stringi.stri_replace_all_regex(inputs.str, patterns.alternation, REPLACEMENT, LogicalVector.TRUE,
+        options.opts_regex);
+  }
+
+  @Benchmark
+  public SEXP splitAlternation(Inputs inputs, Patterns patterns, Options options) {
+    return stringi.stri_split_regex(inputs.str, patterns.alternation, NO_LIMIT, LogicalVector.FALSE,
+        LogicalVector.FALSE, LogicalVector.FALSE, options.opts_regex);
+  }
+
+  @Benchmark
+  public SEXP replaceAllRegex(Inputs inputs, Patterns patterns, Options options) {
+    return stringi.stri_replace_all_regex(inputs.str, patterns.regex, REPLACEMENT, LogicalVector.TRUE,
+        options.opts_regex);
+  }
+}
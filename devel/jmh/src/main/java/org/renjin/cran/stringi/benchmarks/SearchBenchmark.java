@@ -0,0 +1,65 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.cran.stringi.stringi;
+import org.renjin.sexp.IntArrayVector;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.Null;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+
+/**
+ * Pattern search natives: detect, replace, split
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+  private static final SEXP NO_LIMIT = new IntArrayVector(-1);
+  private static final SEXP SEPARATORS = StringVector.valueOf("[\\p{Z}\\p{P}]");
+  private static final SEXP REPLACEMENT = StringVector.valueOf("#");
+
+  @Benchmark
+  public SEXP detectFixed(Inputs inputs, Patterns patterns) {
+    return stringi.stri_detect_fixed(inputs.str, patterns.fixed, LogicalVector.FALSE, Null.INSTANCE);
+  }
+
+  @Benchmark
+  public SEXP replaceAllRegex(Inputs inputs, Patterns patterns) {
+    return stringi.stri_replace_all_regex(inputs.str, patterns.regex, REPLACEMENT, LogicalVector.TRUE, Null.INSTANCE);
+  }
+
+  @Benchmark
+  public SEXP splitFixed(Inputs inputs, Patterns patterns) {
+    return stringi.stri_split_fixed(inputs.str, patterns.fixed, NO_LIMIT, LogicalVector.FALSE, LogicalVector.FALSE,
+        LogicalVector.FALSE, Null.INSTANCE);
+  }
+
+  @Benchmark
+  public SEXP splitRegex(Inputs inputs, Patterns patterns) {
+    return stringi.stri_split_regex(inputs.str, patterns.regex, NO_LIMIT, LogicalVector.FALSE, LogicalVector.FALSE,
+        LogicalVector.FALSE, Null.INSTANCE);
+  }
+
+  @Benchmark
+  public SEXP splitCharclass(Inputs inputs) {
+    return stringi.stri_split_charclass(inputs.str, SEPARATORS, NO_LIMIT, LogicalVector.TRUE, LogicalVector.FALSE,
+        LogicalVector.FALSE);
+  }
+
+  @Benchmark
+  public SEXP splitLines(Inputs inputs) {
+    return stringi.stri_split_lines(inputs.str, LogicalVector.FALSE);
+  }
+}
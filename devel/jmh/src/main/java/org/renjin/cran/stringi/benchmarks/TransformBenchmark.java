@@ -0,0 +1,49 @@
+package org.renjin.cran.stringi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.cran.stringi.stringi;
+import org.renjin.sexp.SEXP;
+
+/**
+ * Per-string transformations: width, normalization forms
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+  @Benchmark
+  public SEXP width(Inputs inputs) {
+    return stringi.stri_width(inputs.str);
+  }
+
+  @Benchmark
+  public SEXP transNfc(Inputs inputs) {
+    return stringi.stri_trans_nfc(inputs.str);
+  }
+
+  @Benchmark
+  public SEXP transNfd(Inputs inputs) {
+    return stringi.stri_trans_nfd(inputs.str);
+  }
+
+  @Benchmark
+  public SEXP transNfkc(Inputs inputs) {
+    return stringi.stri_trans_nfkc(inputs.str);
+  }
+
+  @Benchmark
+  public SEXP transNfkd(Inputs inputs) {
+    return stringi.stri_trans_nfkd(inputs.str);
+  }
+}
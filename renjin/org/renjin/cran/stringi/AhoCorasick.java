@@ -0,0 +1,217 @@
+package org.renjin.cran.stringi;
+
+import java.util.Arrays;
+
+/**
+ * Multi-pattern fixed string matcher (Aho-Corasick automaton)
+ *
+ * Patterns are matched code unit by code unit. With case folding enabled,
+ * both the patterns and the searched text are folded one code unit at a time
+ * (see FixedSearch.fold), so match offsets always refer to the original text.
+ */
+final class AhoCorasick {
+
+  private static final int ROOT = 0;
+  private static final long NO_KEY = -1L;
+
+  private final boolean caseInsensitive;
+
+  // trie structure: children of a node form a singly linked list
+  private final int[] firstChild;
+  private final int[] nextSibling;
+  private final char[] label;
+  private int nodeCount;
+
+  // (node, code unit) -> child node, open addressing with linear probing
+  private final long[] edgeKeys;
+  private final int[] edgeTargets;
+  private final int edgeMask;
+
+  private final int[] fail;
+  private final int[] outputLink; // nearest proper suffix node ending some pattern, or -1
+  private final int[][] outputs;  // indices of the patterns ending at a node, ascending
+
+  /**
+   * @param patterns
+   *          patterns to search for; NA and empty patterns are never matched
+   * @param caseInsensitive
+   *          enable simple (code unit) case folding
+   */
+  AhoCorasick(String[] patterns, boolean caseInsensitive) {
+    this.caseInsensitive = caseInsensitive;
+
+    long nodes = 1;
+    for (String pattern : patterns) {
+      if (pattern != null) {
+        nodes += pattern.length();
+      }
+    }
+    final int tableSize = IndexSet.tableSize(nodes);
+    final int capacity = (int) nodes;
+    firstChild = new int[capacity];
+    nextSibling = new int[capacity];
+    label = new char[capacity];
+    Arrays.fill(firstChild, -1);
+    Arrays.fill(nextSibling, -1);
+    nodeCount = 1;
+
+    edgeKeys = new long[tableSize];
+    edgeTargets = new int[tableSize];
+    edgeMask = tableSize - 1;
+    Arrays.fill(edgeKeys, NO_KEY);
+
+    final int[][] ends = new int[capacity][];
+    for (int k = 0; k < patterns.length; k++) {
+      final String pattern = patterns[k];
+      if (pattern == null || pattern.length() <= 0) {
+        continue;
+      }
+      int node = ROOT;
+      for (int i = 0; i < pattern.length(); i++) {
+        final char c = caseInsensitive ? FixedSearch.fold(pattern.charAt(i)) : pattern.charAt(i);
+        int next = child(node, c);
+        if (next < 0) {
+          next = addChild(node, c);
+        }
+        node = next;
+      }
+      ends[node] = append(ends[node], k);
+    }
+
+    outputs = ends;
+    fail = new int[nodeCount];
+    outputLink = new int[nodeCount];
+    Arrays.fill(outputLink, -1);
+
+    // breadth-first construction of the failure function
+    final int[] queue = new int[nodeCount];
+    int head = 0;
+    int tail = 0;
+    for (int v = firstChild[ROOT]; v >= 0; v = nextSibling[v]) {
+      fail[v] = ROOT;
+      queue[tail++] = v;
+    }
+    while (head < tail) {
+      final int u = queue[head++];
+      for (int v = firstChild[u]; v >= 0; v = nextSibling[v]) {
+        final char c = label[v];
+        int f = fail[u];
+        int target;
+        while ((target = child(f, c)) < 0 && f != ROOT) {
+          f = fail[f];
+        }
+        fail[v] = (target < 0) ? ROOT : target;
+        outputLink[v] = (outputs[fail[v]] != null) ? fail[v] : outputLink[fail[v]];
+        queue[tail++] = v;
+      }
+    }
+  }
+
+  /**
+   * @param text
+   *          string to search in
+   * @param minIndex
+   *          patterns with smaller indices are ignored
+   * @return the smallest index (>= minIndex) of a pattern occurring in text, or -1 if there is none
+   */
+  int firstMatch(String text, int minIndex) {
+    int best = -1;
+    int node = ROOT;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      node = step(node, text.charAt(i));
+      for (int out = (outputs[node] != null) ? node : outputLink[node]; out >= 0; out = outputLink[out]) {
+        for (int k : outputs[out]) {
+          if (k >= minIndex) {
+            if (best < 0 || k < best) {
+              if (k == minIndex) {
+                return k;
+              }
+              best = k;
+            }
+            break;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Mark all the patterns that occur in a given string
+   *
+   * @param text
+   *          string to search in
+   * @param found
+   *          flags indexed like the patterns, set to true for each occurring pattern
+   * @return number of distinct patterns found
+   */
+  int matchAll(String text, boolean[] found) {
+    int count = 0;
+    int node = ROOT;
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      node = step(node, text.charAt(i));
+      for (int out = (outputs[node] != null) ? node : outputLink[node]; out >= 0; out = outputLink[out]) {
+        for (int k : outputs[out]) {
+          if (!found[k]) {
+            found[k] = true;
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private int step(int node, char c) {
+    final char folded = caseInsensitive ? FixedSearch.fold(c) : c;
+    int next;
+    while ((next = child(node, folded)) < 0 && node != ROOT) {
+      node = fail[node];
+    }
+    return (next < 0) ? ROOT : next;
+  }
+
+  private int child(int node, char c) {
+    final long key = ((long) node << 16) | c;
+    for (int slot = hash(key); ; slot = (slot + 1) & edgeMask) {
+      final long current = edgeKeys[slot];
+      if (current == key) {
+        return edgeTargets[slot];
+      } else if (current == NO_KEY) {
+        return -1;
+      }
+    }
+  }
+
+  private int addChild(int node, char c) {
+    final int created = nodeCount++;
+    label[created] = c;
+    nextSibling[created] = firstChild[node];
+    firstChild[node] = created;
+
+    final long key = ((long) node << 16) | c;
+    int slot = hash(key);
+    while (edgeKeys[slot] != NO_KEY) {
+      slot = (slot + 1) & edgeMask;
+    }
+    edgeKeys[slot] = key;
+    edgeTargets[slot] = created;
+    return created;
+  }
+
+  private int hash(long key) {
+    final long mixed = key * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32)) & edgeMask;
+  }
+
+  private static int[] append(int[] array, int value) {
+    if (array == null) {
+      return new int[] { value };
+    }
+    final int[] extended = Arrays.copyOf(array, array.length + 1);
+    extended[array.length] = value;
+    return extended;
+  }
+}
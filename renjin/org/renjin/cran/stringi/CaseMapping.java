@@ -0,0 +1,123 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheBuilder;
+
+import com.ibm.icu.lang.UCharacter;
+import com.ibm.icu.text.BreakIterator;
+import com.ibm.icu.util.ULocale;
+
+/**
+ * Case mapping of a locale, as done by the stri_trans_to* natives
+ *
+ * Mappings are immutable, so one per locale is cached and shared by all
+ * threads. Strings made of ASCII characters only are mapped without ICU,
+ * unless the locale has rules of its own for them (the dotted and dotless i
+ * of Turkish and Azeri), and are returned as they are if they are in the
+ * target case already.
+ */
+final class CaseMapping {
+
+  private static final int CACHE_SIZE = 64;
+
+  static final Cache<ULocale, CaseMapping> CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private final ULocale locale;
+  private final boolean asciiAsInRoot; // whether ASCII letters map as in the root locale
+
+  private CaseMapping(ULocale locale) {
+    this.locale = locale;
+    final String language = locale.getLanguage();
+    this.asciiAsInRoot = !"tr".equals(language) && !"az".equals(language);
+  }
+
+  static CaseMapping of(ULocale locale) {
+    CaseMapping mapping = CACHE.getIfPresent(locale);
+    if (mapping == null) {
+      mapping = new CaseMapping(locale);
+      CACHE.put(locale, mapping);
+    }
+    return mapping;
+  }
+
+  String toLower(String s) {
+    if (asciiAsInRoot) {
+      final String mapped = asciiToLower(s);
+      if (mapped != null) {
+        return mapped;
+      }
+    }
+    return UCharacter.toLowerCase(locale, s);
+  }
+
+  String toUpper(String s) {
+    if (asciiAsInRoot) {
+      final String mapped = asciiToUpper(s);
+      if (mapped != null) {
+        return mapped;
+      }
+    }
+    return UCharacter.toUpperCase(locale, s);
+  }
+
+  /**
+   * @param words
+   *          iterator over the words to title-case, whose text is set to s
+   */
+  String toTitle(String s, BreakIterator words) {
+    return UCharacter.toTitleCase(locale, s, words, 0);
+  }
+
+  /**
+   * @return s in lower case, s itself if it is already, or null if it is not all ASCII
+   */
+  private static String asciiToLower(String s) {
+    final int length = s.length();
+    int all = 0;
+    int upper = 0;
+    for (int i = 0; i < length; i++) {
+      final int c = s.charAt(i);
+      all |= c;
+      upper |= ((c - 'A') | ('Z' - c)) >>> 31 ^ 1;
+    }
+    if (all >= 0x80) {
+      return null;
+    } else if (upper == 0) {
+      return s;
+    }
+    final char[] mapped = new char[length];
+    for (int i = 0; i < length; i++) {
+      final int c = s.charAt(i);
+      mapped[i] = (char) (c + ((((c - 'A') | ('Z' - c)) >>> 31 ^ 1) << 5));
+    }
+    return new String(mapped);
+  }
+
+  /**
+   * @return s in upper case, s itself if it is already, or null if it is not all ASCII
+   */
+  private static String asciiToUpper(String s) {
+    final int length = s.length();
+    int all = 0;
+    int lower = 0;
+    for (int i = 0; i < length; i++) {
+      final int c = s.charAt(i);
+      all |= c;
+      lower |= ((c - 'a') | ('z' - c)) >>> 31 ^ 1;
+    }
+    if (all >= 0x80) {
+      return null;
+    } else if (lower == 0) {
+      return s;
+    }
+    final char[] mapped = new char[length];
+    for (int i = 0; i < length; i++) {
+      final int c = s.charAt(i);
+      mapped[i] = (char) (c - ((((c - 'a') | ('z' - c)) >>> 31 ^ 1) << 5));
+    }
+    return new String(mapped);
+  }
+}
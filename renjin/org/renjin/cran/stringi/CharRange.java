@@ -0,0 +1,94 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheBuilder;
+import org.renjin.sexp.StringVector;
+
+/**
+ * The smallest range of code units the strings of a vector fall in
+ *
+ * Each range includes the previous ones. Natives use the range of their input
+ * to take shortcuts: without supplementary characters the number of code
+ * points is the number of chars, ASCII strings need one UTF-8 byte per char,
+ * and printable ASCII characters are all of width 1.
+ *
+ * The range of a vector is found in a single pass over its chars and
+ * remembered for as long as the vector instance is alive, so e.g. calling
+ * stri_length() and stri_width() on the same vector scans it only once.
+ */
+enum CharRange {
+  /** U+0020..U+007E */
+  ASCII_PRINTABLE,
+  /** U+0000..U+007F */
+  ASCII,
+  /** no surrogate code units */
+  BMP,
+  /** anything */
+  FULL;
+
+  private static final int CACHE_SIZE = 1024;
+
+  /**
+   * Ranges of the vectors seen recently, keyed by identity
+   */
+  static final Cache<StringVector, CharRange> CACHE = CacheBuilder.newBuilder()
+      .weakKeys()
+      .maximumSize(CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  boolean isAscii() {
+    return this.compareTo(ASCII) <= 0;
+  }
+
+  boolean isBmp() {
+    return this.compareTo(BMP) <= 0;
+  }
+
+  /**
+   * @return the range of the non-NA elements of the vector, scanning it if it was not seen before
+   */
+  static CharRange of(StringVector strings) {
+    CharRange range = CACHE.getIfPresent(strings);
+    if (range == null) {
+      range = ASCII_PRINTABLE;
+      for (int i = 0, n = strings.length(); i < n && range != FULL; i++) {
+        if (!strings.isElementNA(i)) {
+          range = max(range, of(strings.getElementAsString(i)));
+        }
+      }
+      CACHE.put(strings, range);
+    }
+    return range;
+  }
+
+  /**
+   * @return the range of the vector if it is already known, FULL otherwise; never scans
+   */
+  static CharRange known(StringVector strings) {
+    final CharRange range = CACHE.getIfPresent(strings);
+    return range == null ? FULL : range;
+  }
+
+  static CharRange of(String s) {
+    int or = 0;
+    boolean controls = false;
+    for (int j = 0, n = s.length(); j < n; j++) {
+      final char c = s.charAt(j);
+      or |= c;
+      if (c < 0x20 || c == 0x7F) {
+        controls = true;
+      } else if (Character.isSurrogate(c)) {
+        return FULL;
+      }
+    }
+    if (or < 0x80) {
+      return controls ? ASCII : ASCII_PRINTABLE;
+    }
+    return BMP;
+  }
+
+  private static CharRange max(CharRange a, CharRange b) {
+    return a.compareTo(b) >= 0 ? a : b;
+  }
+}
@@ -0,0 +1,114 @@
+package org.renjin.cran.stringi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ibm.icu.lang.UCharacter;
+import com.ibm.icu.lang.UCharacter.EastAsianWidth;
+import com.ibm.icu.lang.UCharacter.HangulSyllableType;
+import com.ibm.icu.lang.UProperty;
+
+/**
+ * Width of code points, as used by stri_width
+ *
+ * The widths of all code points are computed once, when the class is loaded,
+ * and kept in a two-level table: the high bits of a code point select a block
+ * of BLOCK_SIZE widths, the low bits an entry in it. Most blocks are all 1s
+ * (or otherwise identical), and identical blocks are stored only once.
+ */
+final class CharWidth {
+
+  private static final int BLOCK_SHIFT = 7;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /** offset of the block of each (code point >> BLOCK_SHIFT) in WIDTHS */
+  private static final int[] BLOCKS = new int[(Character.MAX_CODE_POINT + 1) >> BLOCK_SHIFT];
+  private static final byte[] WIDTHS;
+
+  static {
+    final Map<String, Integer> offsets = new HashMap<String, Integer>();
+    final char[] block = new char[BLOCK_SIZE];
+    byte[] widths = new byte[16 * BLOCK_SIZE];
+    int size = 0;
+    for (int b = 0; b < BLOCKS.length; b++) {
+      final int first = b << BLOCK_SHIFT;
+      for (int k = 0; k < BLOCK_SIZE; k++) {
+        block[k] = (char) compute(first + k);
+      }
+      final String key = new String(block);
+      Integer offset = offsets.get(key);
+      if (offset == null) {
+        if (size + BLOCK_SIZE > widths.length) {
+          widths = Arrays.copyOf(widths, 2 * widths.length);
+        }
+        for (int k = 0; k < BLOCK_SIZE; k++) {
+          widths[size + k] = (byte) block[k];
+        }
+        offset = size;
+        offsets.put(key, offset);
+        size += BLOCK_SIZE;
+      }
+      BLOCKS[b] = offset;
+    }
+    WIDTHS = Arrays.copyOf(widths, size);
+  }
+
+  private CharWidth() {
+  }
+
+  /**
+   * @return 0, 1 or 2
+   */
+  static int of(int codePoint) {
+    return WIDTHS[BLOCKS[codePoint >> BLOCK_SHIFT] + (codePoint & BLOCK_MASK)];
+  }
+
+  static int of(String s) {
+    int width = 0;
+    for (int j = 0, n = s.length(); j < n; ) {
+      final char c = s.charAt(j);
+      if (Character.isHighSurrogate(c) && j + 1 < n && Character.isLowSurrogate(s.charAt(j + 1))) {
+        width += of(Character.toCodePoint(c, s.charAt(j + 1)));
+        j += 2;
+      } else {
+        width += WIDTHS[BLOCKS[c >> BLOCK_SHIFT] + (c & BLOCK_MASK)];
+        j++;
+      }
+    }
+    return width;
+  }
+
+  private static int compute(int codePoint) {
+    if (codePoint == 0x00AD) {
+      return 1; /* SOFT HYPHEN */
+    }
+    if (codePoint == 0x200B) {
+      return 0; /* ZERO WIDTH SPACE */
+    }
+
+    /* GC: Me, Mn, Cf, Cc -> width = 0 */
+    final int category = Character.getType(codePoint);
+    if (category == Character.NON_SPACING_MARK | category == Character.ENCLOSING_MARK | category == Character.FORMAT | category == Character.CONTROL) {
+      return 0;
+    }
+
+    /* Hangul Jamo medial vowels and final consonants have width 0 */
+    int hangul = UCharacter.getIntPropertyValue(codePoint, UProperty.HANGUL_SYLLABLE_TYPE);
+    if (hangul == HangulSyllableType.VOWEL_JAMO || hangul == HangulSyllableType.TRAILING_JAMO) {
+      return 0;
+    }
+
+    /*
+     * Characters with the \code{UCHAR_EAST_ASIAN_WIDTH} enumerable property equal to \code{U_EA_FULLWIDTH} or \code{U_EA_WIDE} are of width 2.
+     */
+    int width = UCharacter.getIntPropertyValue(codePoint, UProperty.EAST_ASIAN_WIDTH);
+    if (width == EastAsianWidth.FULLWIDTH || width == EastAsianWidth.WIDE) {
+      return 2;
+    }
+
+    /* any other characters have width 1 */
+    return 1;
+  }
+}
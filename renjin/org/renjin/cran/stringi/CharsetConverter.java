@@ -0,0 +1,208 @@
+package org.renjin.cran.stringi;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import org.renjin.sexp.RawArrayVector;
+import org.renjin.sexp.RawVector;
+
+/**
+ * Conversion kernel of stri_encode, from bytes in a source charset (or from
+ * strings) to strings or bytes in a target charset
+ *
+ * Coders are costly to create, so each converter keeps its own and resets
+ * them for every element, along with the char and byte buffers all elements
+ * are converted in; converters are not thread-safe and ElementLoop workers
+ * each keep their own. Byte sequences that cannot be decoded and chars that
+ * cannot be encoded are replaced with the substitute of the coder as they
+ * are met, the first of them being reported by warning().
+ *
+ * Strings are returned as they are, and raw vectors read in place, whenever possible.
+ */
+final class CharsetConverter {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final CharsetDecoder decoder; // source charset
+  private final CharsetEncoder encoder; // target charset
+  private final Charset target;
+  private final boolean lossless; // whether the target charset encodes every string
+  private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+  private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+  private byte[] input = new byte[0]; // copy of raw vectors which cannot be read in place
+  private String warning;
+
+  CharsetConverter(Charset from, Charset to) {
+    this.decoder = from.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    this.encoder = to.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    this.target = to;
+    this.lossless = to.name().startsWith("UTF-") || "GB18030".equals(to.name());
+  }
+
+  /**
+   * @return a warning about the substitutions made by the last conversion, or null if there were none
+   */
+  String warning() {
+    return warning;
+  }
+
+  String toString(RawVector raw) {
+    decode(raw);
+    return toTarget(null);
+  }
+
+  RawVector toRaw(RawVector raw) {
+    decode(raw);
+    return encode();
+  }
+
+  String toString(String s) {
+    load(s);
+    return toTarget(s);
+  }
+
+  RawVector toRaw(String s) {
+    load(s);
+    return encode();
+  }
+
+  /**
+   * Decode the bytes into chars, substituting malformed and unmappable input
+   */
+  private void decode(RawVector raw) {
+    warning = null;
+    final ByteBuffer in;
+    if (raw instanceof RawArrayVector) {
+      in = ByteBuffer.wrap(((RawArrayVector) raw).toByteArrayUnsafe());
+    } else {
+      final int length = raw.length();
+      if (input.length < length) {
+        input = new byte[Math.max(length, 2 * input.length)];
+      }
+      for (int k = 0; k < length; k++) {
+        input[k] = raw.getElementAsByte(k);
+      }
+      in = ByteBuffer.wrap(input, 0, length);
+    }
+    decoder.reset();
+    chars.clear();
+    CoderResult result;
+    while (!(result = decoder.decode(in, chars, true)).isUnderflow()) {
+      if (result.isOverflow()) {
+        chars = grow(chars, 1);
+      } else {
+        if (warning == null) {
+          warning = String.format("input data \\x%02x in the current source encoding could not be converted to Unicode",
+              in.get(in.position()) & 0xff);
+        }
+        final String replacement = decoder.replacement();
+        if (chars.remaining() < replacement.length()) {
+          chars = grow(chars, replacement.length());
+        }
+        chars.put(replacement);
+        in.position(in.position() + result.length());
+      }
+    }
+    while (decoder.flush(chars).isOverflow()) {
+      chars = grow(chars, 1);
+    }
+    chars.flip();
+  }
+
+  /**
+   * Copy the string into the char buffer, in which the coders work much faster than in a wrapper
+   */
+  private void load(String s) {
+    warning = null;
+    final int length = s.length();
+    if (chars.capacity() < length) {
+      chars = CharBuffer.allocate(Math.max(length, 2 * chars.capacity()));
+    }
+    s.getChars(0, length, chars.array(), 0);
+    chars.position(0);
+    chars.limit(length);
+  }
+
+  /**
+   * @return the chars as a string of the target charset, i.e. with the chars it cannot
+   *         encode substituted; s itself if it holds the chars and no substitution is needed
+   */
+  private String toTarget(String s) {
+    final String text = (s != null) ? s : new String(chars.array(), 0, chars.limit());
+    if (lossless) {
+      return text;
+    }
+    final boolean substituted = encodeToBuffer();
+    if (!substituted) {
+      return text;
+    }
+    return target.decode(bytes).toString();
+  }
+
+  /**
+   * @return the chars encoded in the target charset, in a vector sized to fit
+   */
+  private RawVector encode() {
+    encodeToBuffer();
+    return new RawArrayVector(Arrays.copyOf(bytes.array(), bytes.limit()));
+  }
+
+  /**
+   * Encode the chars into the byte buffer, substituting those the target charset cannot encode
+   *
+   * @return whether anything was substituted
+   */
+  private boolean encodeToBuffer() {
+    boolean substituted = false;
+    encoder.reset();
+    bytes.clear();
+    CoderResult result;
+    while (!(result = encoder.encode(chars, bytes, true)).isUnderflow()) {
+      if (result.isOverflow()) {
+        bytes = grow(bytes, 1);
+      } else {
+        if (warning == null) {
+          warning = String.format("the Unicode code point \\U%08x cannot be converted to destination encoding",
+              Character.codePointAt(chars, 0));
+        }
+        substituted = true;
+        final byte[] replacement = encoder.replacement();
+        if (bytes.remaining() < replacement.length) {
+          bytes = grow(bytes, replacement.length);
+        }
+        bytes.put(replacement);
+        chars.position(chars.position() + result.length());
+      }
+    }
+    while (encoder.flush(bytes).isOverflow()) {
+      bytes = grow(bytes, 1);
+    }
+    bytes.flip();
+    return substituted;
+  }
+
+  /**
+   * @return a buffer with the contents of the given one and room for at least needed more chars
+   */
+  private static CharBuffer grow(CharBuffer buffer, int needed) {
+    final CharBuffer grown = CharBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + needed));
+    buffer.flip();
+    return grown.put(buffer);
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+    final ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + needed));
+    buffer.flip();
+    return grown.put(buffer);
+  }
+}
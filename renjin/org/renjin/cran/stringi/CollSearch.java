@@ -0,0 +1,105 @@
+package org.renjin.cran.stringi;
+
+import java.text.StringCharacterIterator;
+
+import com.ibm.icu.text.RuleBasedCollator;
+import com.ibm.icu.text.SearchIterator;
+import com.ibm.icu.text.StringSearch;
+
+/**
+ * Locale-aware pattern search kernel shared by the stri_*_coll natives
+ *
+ * Matches are found by an ICU StringSearch, which compares collation
+ * elements, so a match may differ in length from the pattern (e.g. "ss"
+ * matches "\u00df" at primary strength). The StringSearch is opened on the first
+ * search and then pointed at each new pattern and string with setPattern()
+ * and setTarget(), which is much cheaper than opening a new one per element.
+ * Searchers are not thread-safe; ElementLoop workers each keep their own.
+ *
+ * Offsets are UTF-16 indices into the searched string; DONE means no match.
+ */
+final class CollSearch {
+
+  static final int DONE = SearchIterator.DONE;
+
+  private final RuleBasedCollator collator;
+  private final StringCharacterIterator target = new StringCharacterIterator("");
+  private StringSearch search;
+  private String pattern;
+  private boolean empty;
+
+  /**
+   * @param collator
+   *          frozen collator, which may be shared with other searchers
+   */
+  CollSearch(RuleBasedCollator collator) {
+    this.collator = collator;
+  }
+
+  /**
+   * Search the given string for the given pattern from now on
+   *
+   * @param pattern
+   *          nonempty search pattern
+   */
+  CollSearch reset(String pattern, String text) {
+    // StringSearch rejects empty texts, in which nothing is ever found anyway
+    empty = text.isEmpty();
+    if (empty) {
+      return this;
+    }
+    target.setText(text);
+    if (search == null) {
+      search = new StringSearch(pattern, target, collator);
+    } else {
+      if (!pattern.equals(this.pattern)) {
+        search.setPattern(pattern);
+      }
+      search.setTarget(target);
+    }
+    this.pattern = pattern;
+    return this;
+  }
+
+  /**
+   * @return start of the first match, or DONE
+   */
+  int first() {
+    return empty ? DONE : search.first();
+  }
+
+  /**
+   * @return start of the match following the current one, or DONE
+   */
+  int next() {
+    return empty ? DONE : search.next();
+  }
+
+  /**
+   * @return start of the last match, or DONE
+   */
+  int last() {
+    return empty ? DONE : search.last();
+  }
+
+  /**
+   * @return start of the first match at or after index, or DONE
+   */
+  int following(int index) {
+    return empty ? DONE : search.following(index);
+  }
+
+  /**
+   * @return start of the last match before index, or DONE
+   */
+  int preceding(int index) {
+    return empty ? DONE : search.preceding(index);
+  }
+
+  /**
+   * @return length, in UTF-16 code units, of the current match
+   */
+  int matchLength() {
+    return search.getMatchLength();
+  }
+}
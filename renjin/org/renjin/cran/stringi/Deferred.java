@@ -0,0 +1,38 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.eval.Context;
+import org.renjin.primitives.Native;
+import org.renjin.sexp.AtomicVector;
+import org.renjin.sexp.SEXP;
+
+/**
+ * When to return deferred results
+ *
+ * Pure element-wise natives return vectors that compute an element on first
+ * access and memoise it, so that e.g. stri_width(x)[1:10] costs 10 evaluations
+ * whatever the length of x. Below {@code stringi.deferred.threshold} elements
+ * (100000 by default; a negative value disables deferral) the bookkeeping does
+ * not pay off and the results are computed right away.
+ */
+final class Deferred {
+
+  static final String OPTION_THRESHOLD = "stringi.deferred.threshold";
+
+  private static final int DEFAULT_THRESHOLD = 100000;
+
+  private Deferred() {
+  }
+
+  static boolean isDeferred(int length) {
+    final int threshold = threshold(Native.currentContext());
+    return threshold >= 0 && length >= threshold;
+  }
+
+  private static int threshold(Context context) {
+    final SEXP threshold = context.getSession().getOptions().get(OPTION_THRESHOLD);
+    if (!(threshold instanceof AtomicVector) || threshold.length() != 1 || ((AtomicVector) threshold).isElementNA(0)) {
+      return DEFAULT_THRESHOLD;
+    }
+    return ((AtomicVector) threshold).getElementAsInt(0);
+  }
+}
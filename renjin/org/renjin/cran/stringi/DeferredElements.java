@@ -0,0 +1,66 @@
+package org.renjin.cran.stringi;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Memo of the elements of a deferred vector, shared by DeferredStringVector,
+ * DeferredIntVector and DeferredLogicalVector, which hold the values themselves
+ * in an array of their element type
+ *
+ * Deferred vectors may be passed to natives that read them from the workers
+ * of a parallel ElementLoop, so the memo is thread-safe: the values array is
+ * allocated up front, and an element is stored in it before its flag is set
+ * (with release semantics), so that a thread seeing the flag set also sees
+ * the element. Two threads may both compute the same element, which does no
+ * harm as compute() does not depend on when it is called.
+ */
+abstract class DeferredElements {
+
+  private final int length;
+  private final AtomicIntegerArray computed; // null if the elements are computed right away
+
+  DeferredElements(int length) {
+    this.length = length;
+    this.computed = Deferred.isDeferred(length) ? new AtomicIntegerArray(length) : null;
+  }
+
+  /**
+   * Compute the i-th element and store it in the values array
+   */
+  protected abstract void store(int i);
+
+  /**
+   * @return whether the elements are computed on first access rather than by computeAll()
+   */
+  final boolean isDeferred() {
+    return computed != null;
+  }
+
+  /**
+   * Make sure the i-th element of a deferred vector is stored and visible to the calling thread
+   */
+  final void ensure(int i) {
+    if (computed.get(i) == 0) {
+      store(i);
+      computed.lazySet(i, 1);
+    }
+  }
+
+  /**
+   * Store all the elements: in an ElementLoop if they are not deferred, else on the calling thread
+   */
+  final void computeAll() {
+    if (computed == null) {
+      new ElementLoop<Void>(length) {
+        @Override
+        protected void compute(int i, Void state) {
+          store(i);
+        }
+      }.run();
+    } else {
+      for (int i = 0; i < length; i++) {
+        ensure(i);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.sexp.AttributeMap;
+import org.renjin.sexp.StringArrayVector;
+import org.renjin.sexp.StringVector;
+import org.renjin.sexp.SEXP;
+
+/**
+ * Character vector whose elements are computed on first access and memoised
+ *
+ * Safe to read from several threads; see DeferredElements.
+ */
+abstract class DeferredStringVector extends StringVector {
+
+  private final String[] values;
+  private final DeferredElements elements;
+
+  DeferredStringVector(int length) {
+    super(AttributeMap.EMPTY);
+    this.values = new String[length];
+    this.elements = new DeferredElements(length) {
+      @Override
+      protected void store(int i) {
+        values[i] = compute(i);
+      }
+    };
+  }
+
+  /**
+   * Compute the i-th element; it must not depend on when it is called
+   */
+  protected abstract String compute(int i);
+
+  /**
+   * @return this vector, or all its elements computed now if it is too short to defer
+   */
+  final StringVector deferOrCompute() {
+    if (elements.isDeferred()) {
+      return this;
+    }
+    elements.computeAll();
+    return new StringArrayVector(values);
+  }
+
+  @Override
+  public String getElementAsString(int i) {
+    elements.ensure(i);
+    return values[i];
+  }
+
+  @Override
+  public int length() {
+    return values.length;
+  }
+
+  @Override
+  public boolean isConstantAccessTime() {
+    return false;
+  }
+
+  @Override
+  protected SEXP cloneWithNewAttributes(AttributeMap attributes) {
+    elements.computeAll();
+    return new StringArrayVector(values.clone(), attributes);
+  }
+}
@@ -0,0 +1,202 @@
+package org.renjin.cran.stringi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.renjin.eval.Context;
+import org.renjin.eval.Options;
+import org.renjin.primitives.Native;
+import org.renjin.sexp.AtomicVector;
+import org.renjin.sexp.SEXP;
+
+/**
+ * Element-wise loop of a vectorized native, optionally split across a ForkJoinPool
+ *
+ * Parallel execution is opt-in: it is used only if the R option
+ * {@code stringi.parallel} is TRUE and the loop has at least
+ * {@code stringi.parallel.threshold} elements (10000 by default).
+ *
+ * Each worker gets its own state from {@link #createState()}, because Matchers,
+ * BreakIterators and the like must not be shared between threads; a worker keeps
+ * its state across all the chunks of the loop it processes. The Renjin
+ * context is not thread-safe either: warnings raised in parallel mode are collected
+ * and re-emitted on the calling thread in element order. Each element is computed
+ * by exactly one worker, so the output does not depend on scheduling.
+ *
+ * @param <S> type of the per-worker state
+ */
+abstract class ElementLoop<S> {
+
+  static final String OPTION_PARALLEL = "stringi.parallel";
+  static final String OPTION_THRESHOLD = "stringi.parallel.threshold";
+
+  private static final int DEFAULT_THRESHOLD = 10000;
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private static ForkJoinPool pool;
+
+  private final int length;
+  private final Context context;
+  private List<Warning> warnings;
+  private ForkJoinPool workers;
+  private Object[] states; // by pool index of the worker, in parallel mode
+
+  ElementLoop(int length) {
+    this.length = length;
+    this.context = Native.currentContext();
+  }
+
+  /**
+   * @return a fresh instance of the objects used by one worker, e.g. a cloned BreakIterator
+   */
+  protected S createState() {
+    return null;
+  }
+
+  /**
+   * Compute the i-th element of the result
+   */
+  protected abstract void compute(int i, S state);
+
+  /**
+   * Raise a warning; use this instead of Native.currentContext().warn() in compute()
+   */
+  protected final void warn(int i, String message) {
+    if (warnings == null) {
+      context.warn(message);
+    } else {
+      synchronized (warnings) {
+        warnings.add(new Warning(i, message));
+      }
+    }
+  }
+
+  final void run() {
+    workers = parallelPool(context, length);
+    if (workers == null) {
+      final S state = createState();
+      for (int i = 0; i < length; i++) {
+        compute(i, state);
+      }
+      return;
+    }
+
+    final int chunks = Math.min(length, workers.getParallelism() * CHUNKS_PER_THREAD);
+    warnings = new ArrayList<Warning>();
+    states = new Object[workers.getParallelism()];
+    try {
+      workers.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          final List<Chunk> tasks = new ArrayList<Chunk>(chunks);
+          for (int k = 0; k < chunks; k++) {
+            tasks.add(new Chunk((int) ((long) length * k / chunks), (int) ((long) length * (k + 1) / chunks)));
+          }
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      Collections.sort(warnings, new Comparator<Warning>() {
+        @Override
+        public int compare(Warning w1, Warning w2) {
+          return (w1.index < w2.index) ? -1 : ((w1.index == w2.index) ? 0 : 1);
+        }
+      });
+      for (Warning warning : warnings) {
+        context.warn(warning.message);
+      }
+      warnings = null;
+      states = null;
+      workers = null;
+    }
+  }
+
+  /**
+   * @return the state of the worker running on the current thread, created on first use
+   */
+  @SuppressWarnings("unchecked")
+  private S workerState() {
+    final Thread thread = Thread.currentThread();
+    if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == workers) {
+      final int index = ((ForkJoinWorkerThread) thread).getPoolIndex();
+      // indices are below the parallelism unless the pool has added threads to compensate for blocked ones
+      if (index < states.length) {
+        if (states[index] == null) {
+          states[index] = createState();
+        }
+        return (S) states[index];
+      }
+    }
+    // a thread outside the pool helping with the loop
+    return createState();
+  }
+
+  /**
+   * @return the pool to process the given number of elements with, or null if they
+   *         are to be processed sequentially on the calling thread
+   */
+  static ForkJoinPool parallelPool(Context context, int length) {
+    final int threshold = parallelThreshold(context);
+    if (threshold < 0 || length < Math.max(threshold, 2)) {
+      return null;
+    }
+    return sharedPool();
+  }
+
+  /**
+   * @return minimal loop length for parallel execution, or -1 if parallel execution is disabled
+   */
+  private static int parallelThreshold(Context context) {
+    final Options options = context.getSession().getOptions();
+    final SEXP enabled = options.get(OPTION_PARALLEL);
+    if (!(enabled instanceof AtomicVector) || enabled.length() != 1
+        || ((AtomicVector) enabled).isElementNA(0) || !((AtomicVector) enabled).getElementAsLogical(0).toBooleanStrict()) {
+      return -1;
+    }
+    final SEXP threshold = options.get(OPTION_THRESHOLD);
+    if (!(threshold instanceof AtomicVector) || threshold.length() != 1 || ((AtomicVector) threshold).isElementNA(0)) {
+      return DEFAULT_THRESHOLD;
+    }
+    return Math.max(0, ((AtomicVector) threshold).getElementAsInt(0));
+  }
+
+  private static synchronized ForkJoinPool sharedPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return pool;
+  }
+
+  private final class Chunk extends RecursiveAction {
+    private final int from;
+    private final int to;
+
+    Chunk(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      final S state = workerState();
+      for (int i = from; i < to; i++) {
+        ElementLoop.this.compute(i, state);
+      }
+    }
+  }
+
+  private static final class Warning {
+    private final int index;
+    private final String message;
+
+    Warning(int index, String message) {
+      this.index = index;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.renjin.cran.stringi;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.renjin.sexp.RawArrayVector;
+import org.renjin.sexp.RawVector;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+
+/**
+ * Detection kernel of stri_enc_detect and stri_enc_detect2, built on an ICU CharsetDetector
+ *
+ * Detectors are not thread-safe; ElementLoop workers each keep their own and
+ * reuse it for all their elements. The statistical recognizers of ICU look at
+ * the first few kilobytes only, but the UTF-* ones validate the whole input,
+ * so inputs above SAMPLE_THRESHOLD bytes are detected on a sample instead: their
+ * first SAMPLE_PREFIX bytes (which hold any byte order mark) followed by
+ * SAMPLE_WINDOWS windows of SAMPLE_WINDOW bytes taken at random from the rest.
+ * Windows start and end on 4-byte boundaries that do not split a UTF-8 sequence
+ * where possible, so that joining them creates no invalid sequences. The windows
+ * of an input depend on its length only, so detection is reproducible.
+ */
+final class EncodingDetector {
+
+  static final int SAMPLE_PREFIX = 1 << 16;
+  static final int SAMPLE_WINDOWS = 16;
+  static final int SAMPLE_WINDOW = 1 << 12;
+  static final int SAMPLE_THRESHOLD = 2 * (SAMPLE_PREFIX + SAMPLE_WINDOWS * SAMPLE_WINDOW);
+
+  /**
+   * Bytes looked through for a boundary before a window is cut where it falls
+   */
+  private static final int BOUNDARY_SEARCH = 1 << 8;
+
+  private final CharsetDetector detector = new CharsetDetector();
+  private final Random random = new Random();
+  private boolean ascii;
+
+  /**
+   * @return the guesses for the bytes, by decreasing confidence
+   */
+  CharsetMatch[] detect(RawVector raw, boolean filterAngleBrackets) {
+    final byte[] bytes;
+    if (raw instanceof RawArrayVector) {
+      bytes = ((RawArrayVector) raw).toByteArrayUnsafe();
+    } else {
+      bytes = raw.toByteArray();
+    }
+    return detect(bytes, filterAngleBrackets);
+  }
+
+  CharsetMatch[] detect(byte[] bytes, boolean filterAngleBrackets) {
+    final byte[] input = (bytes.length > SAMPLE_THRESHOLD) ? sample(bytes) : bytes;
+    int all = 0;
+    for (int k = 0; k < input.length; k++) {
+      all |= input[k];
+    }
+    ascii = all >= 0; // no byte has its high bit set
+    detector.enableInputFilter(filterAngleBrackets);
+    detector.setText(input);
+    return detector.detectAll();
+  }
+
+  /**
+   * @return whether all the bytes of the last detection (or of its sample) were ASCII
+   */
+  boolean wasAscii() {
+    return ascii;
+  }
+
+  private byte[] sample(byte[] bytes) {
+    final byte[] sample = new byte[SAMPLE_PREFIX + SAMPLE_WINDOWS * SAMPLE_WINDOW + (SAMPLE_WINDOWS + 1) * BOUNDARY_SEARCH];
+    final int prefix = boundary(bytes, SAMPLE_PREFIX);
+    System.arraycopy(bytes, 0, sample, 0, prefix);
+    int length = prefix;
+
+    // one window at random in each of SAMPLE_WINDOWS equal stretches of the rest
+    random.setSeed(bytes.length);
+    final long stretch = (bytes.length - prefix) / SAMPLE_WINDOWS;
+    for (int w = 0; w < SAMPLE_WINDOWS; w++) {
+      final int from = prefix + (int) (w * stretch + random.nextInt((int) (stretch - SAMPLE_WINDOW)));
+      final int start = boundary(bytes, from);
+      final int end = boundary(bytes, Math.min(start + SAMPLE_WINDOW, bytes.length));
+      System.arraycopy(bytes, start, sample, length, end - start);
+      length += end - start;
+    }
+    return Arrays.copyOf(sample, length);
+  }
+
+  /**
+   * @return the first index at or after k (up to BOUNDARY_SEARCH bytes after it) which is
+   *         a multiple of 4 and not inside a UTF-8 sequence, or else k rounded down to a
+   *         multiple of 4
+   */
+  private static int boundary(byte[] bytes, int k) {
+    final int aligned = k & ~3;
+    final int limit = Math.min(bytes.length, aligned + BOUNDARY_SEARCH);
+    for (int b = aligned; b < limit; b += 4) {
+      if ((bytes[b] & 0xc0) != 0x80) {
+        return b;
+      }
+    }
+    return aligned;
+  }
+}
@@ -0,0 +1,190 @@
+package org.renjin.cran.stringi;
+
+import java.util.Arrays;
+
+/**
+ * Fixed pattern search kernel shared by the stri_*_fixed natives
+ *
+ * Case-sensitive searches delegate to String.indexOf. Case-insensitive
+ * searches run Boyer-Moore-Horspool over the original text, folding one code
+ * unit at a time, so they allocate nothing and report offsets that are valid
+ * in the searched string (unlike upper-casing a copy of it, which changes its
+ * length for e.g. U+00DF). If both the pattern and the searched strings are
+ * known to be ASCII, folding goes through a 128-entry table instead of the
+ * full 64K one.
+ *
+ * findAll() stores the starts of the matches into a buffer kept from one
+ * call to the next, so searchers are not thread-safe; ElementLoop workers
+ * each keep their own.
+ */
+final class FixedSearch {
+
+  /**
+   * Flag of opts_fixed (along with Pattern.CASE_INSENSITIVE) enabling overlapping matches
+   */
+  static final int OVERLAP = 1 << 16;
+
+  private static final int SKIP_TABLE_SIZE = 256;
+  private static final int SKIP_TABLE_MASK = SKIP_TABLE_SIZE - 1;
+
+  private static final char[] FOLD = new char[Character.MAX_VALUE + 1];
+  private static final char[] FOLD_ASCII = new char[128];
+  static {
+    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+      FOLD[c] = Character.toLowerCase(Character.toUpperCase((char) c));
+    }
+    System.arraycopy(FOLD, 0, FOLD_ASCII, 0, FOLD_ASCII.length);
+  }
+
+  private final String pattern;
+  private final boolean caseInsensitive;
+  private final char[] fold;   // FOLD or FOLD_ASCII
+  private final char[] folded;
+  private final int[] skip;     // forward shifts, indexed by the low byte of a folded code unit
+  private final int[] skipBack; // backward shifts, as above
+  private int[] starts = new int[16]; // of the matches found by findAll()
+
+  /**
+   * @param pattern
+   *          nonempty search pattern
+   * @param caseInsensitive
+   *          enable simple (code unit) case folding
+   * @param asciiText
+   *          whether all the strings to be searched are ASCII
+   */
+  FixedSearch(String pattern, boolean caseInsensitive, boolean asciiText) {
+    this.pattern = pattern;
+    this.caseInsensitive = caseInsensitive;
+    if (caseInsensitive) {
+      fold = (asciiText && CharRange.of(pattern).isAscii()) ? FOLD_ASCII : FOLD;
+      final int m = pattern.length();
+      folded = new char[m];
+      skip = new int[SKIP_TABLE_SIZE];
+      skipBack = new int[SKIP_TABLE_SIZE];
+      for (int i = 0; i < SKIP_TABLE_SIZE; i++) {
+        skip[i] = m;
+        skipBack[i] = m;
+      }
+      for (int i = 0; i < m; i++) {
+        folded[i] = fold[pattern.charAt(i)];
+      }
+      // colliding code units share a slot; keeping the smallest shift is always safe
+      for (int i = 0; i < m - 1; i++) {
+        skip[folded[i] & SKIP_TABLE_MASK] = m - 1 - i;
+      }
+      for (int i = m - 1; i > 0; i--) {
+        skipBack[folded[i] & SKIP_TABLE_MASK] = i;
+      }
+    } else {
+      fold = null;
+      folded = null;
+      skip = null;
+      skipBack = null;
+    }
+  }
+
+  /**
+   * Simple case folding of a single code unit; two code units are equal
+   * under this mapping iff String.regionMatches(true, ...) considers them equal
+   */
+  static char fold(char c) {
+    return FOLD[c];
+  }
+
+  String getPattern() {
+    return pattern;
+  }
+
+  int length() {
+    return pattern.length();
+  }
+
+  /**
+   * @return index of the first match starting at or after fromIndex, or -1
+   */
+  int indexOf(String text, int fromIndex) {
+    if (!caseInsensitive) {
+      return text.indexOf(pattern, fromIndex);
+    }
+    final int m = folded.length;
+    final int last = m - 1;
+    final char lastChar = folded[last];
+    for (int s = Math.max(fromIndex, 0), end = text.length() - m; s <= end; ) {
+      final char c = fold[text.charAt(s + last)];
+      if (c == lastChar) {
+        int k = last - 1;
+        while (k >= 0 && fold[text.charAt(s + k)] == folded[k]) {
+          k--;
+        }
+        if (k < 0) {
+          return s;
+        }
+      }
+      s += skip[c & SKIP_TABLE_MASK];
+    }
+    return -1;
+  }
+
+  /**
+   * Find all the matches in text; the start of the k-th one is then given by start(k)
+   *
+   * @param overlap
+   *          find the matches starting within a previous one too
+   * @return the number of matches
+   */
+  int findAll(String text, boolean overlap) {
+    final int step = overlap ? 1 : pattern.length();
+    int count = 0;
+    for (int s = indexOf(text, 0); s >= 0; s = indexOf(text, s + step)) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, 2 * count);
+      }
+      starts[count++] = s;
+    }
+    return count;
+  }
+
+  /**
+   * @return the start of the k-th match found by the last call to findAll()
+   */
+  int start(int k) {
+    return starts[k];
+  }
+
+  /**
+   * @return the number of matches findAll() would find, without storing them
+   */
+  int count(String text, boolean overlap) {
+    final int step = overlap ? 1 : pattern.length();
+    int count = 0;
+    for (int s = indexOf(text, 0); s >= 0; s = indexOf(text, s + step)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return index of the last match, or -1
+   */
+  int lastIndexOf(String text) {
+    if (!caseInsensitive) {
+      return text.lastIndexOf(pattern);
+    }
+    final int m = folded.length;
+    final char firstChar = folded[0];
+    for (int s = text.length() - m; s >= 0; ) {
+      final char c = fold[text.charAt(s)];
+      if (c == firstChar) {
+        int k = 1;
+        while (k < m && fold[text.charAt(s + k)] == folded[k]) {
+          k++;
+        }
+        if (k == m) {
+          return s;
+        }
+      }
+      s -= skipBack[c & SKIP_TABLE_MASK];
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,78 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.eval.EvalException;
+
+/**
+ * Set of element indices, open addressing with linear probing
+ *
+ * Subclasses define when two elements are equal and how they hash, so the
+ * table holds nothing but one int per slot, whatever the elements are.
+ * hash(j) is called for every probe, so it should be cheap, e.g. cached
+ * by prepare(i).
+ */
+abstract class IndexSet {
+
+  private static final int EMPTY = -1;
+
+  /** largest table, the largest power of two an array can have */
+  private static final int MAX_TABLE_SIZE = 1 << 30;
+
+  private final int[] slots;
+  private final int shift;
+
+  /**
+   * @param capacity
+   *          maximal number of elements to be added
+   */
+  IndexSet(int capacity) {
+    final int size = tableSize(capacity);
+    slots = new int[size];
+    shift = 32 - Integer.numberOfTrailingZeros(size);
+    for (int k = 0; k < size; k++) {
+      slots[k] = EMPTY;
+    }
+  }
+
+  /**
+   * @return the number of slots, a power of two, of an open addressing table for the given
+   *         number of entries: at least twice that, so that probes stay short, as long as
+   *         that fits in an array
+   * @throws EvalException
+   *           if the entries would not fit in the largest table
+   */
+  static int tableSize(long capacity) {
+    if (capacity >= MAX_TABLE_SIZE) {
+      throw new EvalException("too many elements (" + capacity + ") for a hash table");
+    }
+    final long size = Long.highestOneBit(Math.max(2 * capacity, 16) - 1) << 1;
+    return (int) Math.min(size, MAX_TABLE_SIZE);
+  }
+
+  /**
+   * Called once before the i-th element is looked up
+   */
+  protected void prepare(int i) {
+  }
+
+  protected abstract int hash(int i);
+
+  protected abstract boolean equal(int i, int j);
+
+  /**
+   * @return true if the i-th element was added, false if an equal one is in the set already
+   */
+  final boolean add(int i) {
+    prepare(i);
+    final int h = hash(i);
+    final int mask = slots.length - 1;
+    for (int k = (h * 0x9E3779B9) >>> shift; ; k = (k + 1) & mask) {
+      final int j = slots[k];
+      if (j == EMPTY) {
+        slots[k] = i;
+        return true;
+      } else if (hash(j) == h && equal(i, j)) {
+        return false;
+      }
+    }
+  }
+}
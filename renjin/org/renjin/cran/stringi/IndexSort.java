@@ -0,0 +1,108 @@
+package org.renjin.cran.stringi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable merge sort of element indices
+ *
+ * Subclasses define the order of two elements. If a pool is given, the halves
+ * of large ranges are sorted in parallel; the result is the same either way.
+ */
+abstract class IndexSort {
+
+  private static final int INSERTION_SORT_THRESHOLD = 32;
+  private static final int SEQUENTIAL_THRESHOLD = 8192;
+
+  /**
+   * @return a negative number, zero, or a positive number if the i-th element
+   *         is less than, equal to, or greater than the j-th one
+   */
+  protected abstract int compare(int i, int j);
+
+  /**
+   * @param indices
+   *          element indices, sorted in place
+   * @param pool
+   *          pool to sort with, or null to sort on the calling thread
+   */
+  final void sort(int[] indices, ForkJoinPool pool) {
+    final int[] buffer = indices.clone();
+    if (pool == null || indices.length < 2 * SEQUENTIAL_THRESHOLD) {
+      mergeSort(buffer, indices, 0, indices.length);
+    } else {
+      pool.invoke(new MergeSort(buffer, indices, 0, indices.length));
+    }
+  }
+
+  /**
+   * Sort src[from, to) into dst[from, to); both ranges have the same contents on entry
+   */
+  private void mergeSort(int[] src, int[] dst, int from, int to) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      insertionSort(dst, from, to);
+      return;
+    }
+    final int mid = (from + to) >>> 1;
+    mergeSort(dst, src, from, mid);
+    mergeSort(dst, src, mid, to);
+    merge(src, dst, from, mid, to);
+  }
+
+  private void insertionSort(int[] a, int from, int to) {
+    for (int i = from + 1; i < to; i++) {
+      final int current = a[i];
+      int j = i - 1;
+      while (j >= from && compare(a[j], current) > 0) {
+        a[j + 1] = a[j];
+        j--;
+      }
+      a[j + 1] = current;
+    }
+  }
+
+  /**
+   * Merge the sorted src[from, mid) and src[mid, to) into dst[from, to);
+   * ties are taken from the left run, which keeps the sort stable
+   */
+  private void merge(int[] src, int[] dst, int from, int mid, int to) {
+    if (compare(src[mid - 1], src[mid]) <= 0) {
+      System.arraycopy(src, from, dst, from, to - from);
+      return;
+    }
+    int left = from;
+    int right = mid;
+    for (int k = from; k < to; k++) {
+      if (right >= to || (left < mid && compare(src[left], src[right]) <= 0)) {
+        dst[k] = src[left++];
+      } else {
+        dst[k] = src[right++];
+      }
+    }
+  }
+
+  private final class MergeSort extends RecursiveAction {
+    private final int[] src;
+    private final int[] dst;
+    private final int from;
+    private final int to;
+
+    MergeSort(int[] src, int[] dst, int from, int to) {
+      this.src = src;
+      this.dst = dst;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SEQUENTIAL_THRESHOLD) {
+        mergeSort(src, dst, from, to);
+        return;
+      }
+      final int mid = (from + to) >>> 1;
+      invokeAll(new MergeSort(dst, src, from, mid), new MergeSort(dst, src, mid, to));
+      merge(src, dst, from, mid, to);
+    }
+  }
+}
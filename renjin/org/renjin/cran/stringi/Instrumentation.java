@@ -0,0 +1,315 @@
+package org.renjin.cran.stringi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheStats;
+import org.renjin.sexp.DoubleArrayVector;
+import org.renjin.sexp.DoubleVector;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.Null;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringArrayVector;
+
+/**
+ * Optional per-native call metrics
+ *
+ * Enabled with the JVM system property {@code -Dstringi.instrumentation=true},
+ * which is read once, when the natives are registered. If it is not set,
+ * R_init_stringi registers the plain method handles and nothing here runs.
+ * Otherwise every native is wrapped to record its number of calls, the total
+ * length of its first arguments, a histogram of its wall times and the bytes
+ * allocated by the calling thread (where the JVM can tell; allocations made by
+ * ElementLoop workers are not included).
+ *
+ * The metrics, together with the hit rates of the shared caches, are returned
+ * by stri_info() and published as MBeans in the org.renjin.cran.stringi domain.
+ */
+final class Instrumentation {
+
+  static final String PROPERTY = "stringi.instrumentation";
+
+  private static final String JMX_DOMAIN = "org.renjin.cran.stringi";
+
+  /** bucket k counts the calls that took [2^k, 2^(k+1)) nanoseconds */
+  private static final int HISTOGRAM_SIZE = 40;
+
+  private static final Map<String, NativeMetrics> NATIVES = new ConcurrentSkipListMap<String, NativeMetrics>();
+  private static final Map<String, Cache<?, ?>> CACHES = new ConcurrentSkipListMap<String, Cache<?, ?>>();
+
+  private static final MethodHandle INVOKE;
+  static {
+    try {
+      INVOKE = MethodHandles.lookup().findVirtual(NativeMetrics.class, "invoke",
+          MethodType.methodType(Object.class, Object[].class));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final boolean ALLOCATIONS = THREADS instanceof com.sun.management.ThreadMXBean
+      && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+      && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+
+  private Instrumentation() {
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(PROPERTY);
+  }
+
+  /**
+   * @return a method handle of the same type as target, recording the metrics of the given native
+   */
+  static MethodHandle instrument(String name, MethodHandle target) {
+    final MethodType type = target.type();
+    NativeMetrics metrics = NATIVES.get(name);
+    if (metrics == null) { // keep counting across reloads of the package
+      metrics = new NativeMetrics(target.asType(type.generic()).asSpreader(Object[].class, type.parameterCount()));
+      NATIVES.put(name, metrics);
+      register("Native", name, metrics);
+    }
+    return INVOKE.bindTo(metrics).asCollector(Object[].class, type.parameterCount()).asType(type);
+  }
+
+  /**
+   * Report the statistics of a cache (which must record them)
+   */
+  static void registerCache(final String name, final Cache<?, ?> cache) {
+    CACHES.put(name, cache);
+    register("Cache", name, new Metrics("Cache " + name,
+        new String[] { "HitCount", "MissCount", "HitRate", "EvictionCount", "Size" },
+        new String[] { "long", "long", "double", "long", "long" }) {
+      @Override
+      protected Object get(int attribute) {
+        final CacheStats stats = cache.stats();
+        switch (attribute) {
+          case 0: return stats.hitCount();
+          case 1: return stats.missCount();
+          case 2: return stats.hitRate();
+          case 3: return stats.evictionCount();
+          default: return cache.size();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return list(natives, caches) of column lists, or natives=NULL if instrumentation is disabled
+   */
+  static SEXP snapshot() {
+    final ListVector.NamedBuilder result = new ListVector.NamedBuilder();
+    if (NATIVES.isEmpty()) {
+      result.add("natives", Null.INSTANCE);
+    } else {
+      final int n = NATIVES.size();
+      final String[] names = new String[n];
+      final double[] calls = new double[n];
+      final double[] elements = new double[n];
+      final double[] nanos = new double[n];
+      final double[] bytes = new double[n];
+      final SEXP[] histograms = new SEXP[n];
+      int k = 0;
+      for (Map.Entry<String, NativeMetrics> entry : NATIVES.entrySet()) {
+        final NativeMetrics metrics = entry.getValue();
+        names[k] = entry.getKey();
+        calls[k] = metrics.calls.get();
+        elements[k] = metrics.elements.get();
+        nanos[k] = metrics.nanos.get();
+        bytes[k] = ALLOCATIONS ? metrics.bytes.get() : DoubleVector.NA;
+        final long[] histogram = metrics.histogram();
+        final double[] counts = new double[HISTOGRAM_SIZE];
+        for (int b = 0; b < HISTOGRAM_SIZE; b++) {
+          counts[b] = histogram[b];
+        }
+        histograms[k] = new DoubleArrayVector(counts);
+        k++;
+      }
+      result.add("natives", new ListVector.NamedBuilder()
+          .add("name", new StringArrayVector(names))
+          .add("calls", new DoubleArrayVector(calls))
+          .add("elements", new DoubleArrayVector(elements))
+          .add("time_ns", new DoubleArrayVector(nanos))
+          .add("allocated_bytes", new DoubleArrayVector(bytes))
+          .add("time_histogram", new ListVector(histograms))
+          .build());
+    }
+
+    final int n = CACHES.size();
+    final String[] names = new String[n];
+    final double[] hits = new double[n];
+    final double[] misses = new double[n];
+    final double[] evictions = new double[n];
+    final double[] sizes = new double[n];
+    int k = 0;
+    for (Map.Entry<String, Cache<?, ?>> entry : CACHES.entrySet()) {
+      final CacheStats stats = entry.getValue().stats();
+      names[k] = entry.getKey();
+      hits[k] = stats.hitCount();
+      misses[k] = stats.missCount();
+      evictions[k] = stats.evictionCount();
+      sizes[k] = entry.getValue().size();
+      k++;
+    }
+    result.add("caches", new ListVector.NamedBuilder()
+        .add("name", new StringArrayVector(names))
+        .add("hits", new DoubleArrayVector(hits))
+        .add("misses", new DoubleArrayVector(misses))
+        .add("evictions", new DoubleArrayVector(evictions))
+        .add("size", new DoubleArrayVector(sizes))
+        .build());
+    return result.build();
+  }
+
+  private static void register(String type, String name, Metrics bean) {
+    try {
+      final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name);
+      if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+      }
+    } catch (JMException e) {
+      // metrics are still available through stri_info()
+    } catch (SecurityException e) {
+      // as above
+    }
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static final class NativeMetrics extends Metrics {
+    private final MethodHandle target;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_SIZE);
+
+    NativeMetrics(MethodHandle target) {
+      super("stringi native",
+          new String[] { "Calls", "Elements", "TotalNanos", "AllocatedBytes", "NanosHistogram" },
+          new String[] { "long", "long", "long", "long", "[J" });
+      this.target = target;
+    }
+
+    Object invoke(Object[] args) throws Throwable {
+      final long bytesBefore = ALLOCATIONS ? allocatedBytes() : 0;
+      final long start = System.nanoTime();
+      try {
+        return target.invokeExact(args);
+      } finally {
+        final long elapsed = Math.max(System.nanoTime() - start, 1);
+        calls.incrementAndGet();
+        if (args.length > 0 && args[0] instanceof SEXP) {
+          elements.addAndGet(((SEXP) args[0]).length());
+        }
+        nanos.addAndGet(elapsed);
+        histogram.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(elapsed), HISTOGRAM_SIZE - 1));
+        if (ALLOCATIONS) {
+          bytes.addAndGet(allocatedBytes() - bytesBefore);
+        }
+      }
+    }
+
+    long[] histogram() {
+      final long[] result = new long[HISTOGRAM_SIZE];
+      for (int b = 0; b < HISTOGRAM_SIZE; b++) {
+        result[b] = histogram.get(b);
+      }
+      return result;
+    }
+
+    @Override
+    protected Object get(int attribute) {
+      switch (attribute) {
+        case 0: return calls.get();
+        case 1: return elements.get();
+        case 2: return nanos.get();
+        case 3: return ALLOCATIONS ? bytes.get() : -1L;
+        default: return histogram();
+      }
+    }
+  }
+
+  /**
+   * Read-only MBean with a fixed set of attributes
+   */
+  abstract static class Metrics implements DynamicMBean {
+    private final String[] names;
+    private final MBeanInfo info;
+
+    Metrics(String description, String[] names, String[] types) {
+      this.names = names;
+      final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.length];
+      for (int k = 0; k < names.length; k++) {
+        attributes[k] = new MBeanAttributeInfo(names[k], types[k], names[k], true, false, false);
+      }
+      info = new MBeanInfo(getClass().getName(), description, attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    protected abstract Object get(int attribute);
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      for (int k = 0; k < names.length; k++) {
+        if (names[k].equals(attribute)) {
+          return get(k);
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      final AttributeList result = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          result.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException e) {
+          // skipped, as the DynamicMBean contract allows
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      return info;
+    }
+  }
+}
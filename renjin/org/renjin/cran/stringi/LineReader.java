@@ -0,0 +1,144 @@
+package org.renjin.cran.stringi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * Streaming reader of the text lines of a file
+ *
+ * The file is read through its channel into a small byte buffer and decoded
+ * into a small char buffer, which is split into lines as it is filled, so
+ * neither the bytes nor the decoded text of the whole file are ever held in
+ * memory. Nothing is mapped, so closing the reader releases the file at once. Lines end at
+ * CR LF or at any single one of LF, VT, FF, CR, NEL, LS and PS, as in
+ * stri_split_lines1(); the terminators are not included. Malformed input is
+ * replaced with U+FFFD.
+ */
+final class LineReader implements Closeable {
+
+  /** bytes read at a time */
+  private static final int BYTES_SIZE = 1 << 16;
+
+  /** chars decoded at a time */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final CharsetDecoder decoder;
+  private final ByteBuffer bytes = ByteBuffer.allocate(BYTES_SIZE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final StringBuilder line = new StringBuilder();
+
+  private boolean endOfFile;
+  private boolean afterCarriageReturn;
+  private boolean decoded;
+  private boolean finished;
+
+  LineReader(File path, Charset charset) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    bytes.flip(); // nothing read yet
+    chars.flip(); // nothing decoded yet
+  }
+
+  /**
+   * Read up to n lines (all the remaining ones if n is negative)
+   *
+   * @return false if the end of the file was reached
+   */
+  boolean read(List<String> lines, int n) throws IOException {
+    int count = 0;
+    while (n < 0 || count < n) {
+      if (!chars.hasRemaining()) {
+        if (decoded) {
+          if (!finished) {
+            finished = true;
+            if (line.length() > 0) {
+              lines.add(line.toString());
+              line.setLength(0);
+            }
+          }
+          return false;
+        }
+        decode();
+        continue;
+      }
+      final char[] array = chars.array();
+      final int end = chars.limit();
+      int start = chars.position();
+      if (afterCarriageReturn) {
+        afterCarriageReturn = false;
+        if (array[start] == '\n') {
+          start++;
+        }
+      }
+      int k = start;
+      while (k < end && !isTerminator(array[k])) {
+        k++;
+      }
+      line.append(array, start, k - start);
+      if (k < end) {
+        afterCarriageReturn = array[k] == '\r';
+        lines.add(line.toString());
+        line.setLength(0);
+        count++;
+        k++;
+      }
+      chars.position(k);
+    }
+    return true;
+  }
+
+  private static boolean isTerminator(char c) {
+    return (c >= '\n' && c <= '\r') || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Refill the char buffer, reading more of the file whenever the bytes read are used up
+   */
+  private void decode() throws IOException {
+    chars.clear();
+    while (chars.position() == 0 && !decoded) {
+      CoderResult result = decoder.decode(bytes, chars, endOfFile);
+      if (result.isUnderflow() && endOfFile) {
+        // called again after an overflow, until the decoder has nothing left to flush
+        result = decoder.flush(chars);
+        if (result.isUnderflow()) {
+          decoded = true;
+        }
+      }
+      if (result.isOverflow()) {
+        break;
+      } else if (result.isError()) {
+        result.throwException();
+      } else if (!decoded) {
+        // the last few bytes read may start a character continued in the next ones
+        bytes.compact();
+        endOfFile = channel.read(bytes) < 0;
+        bytes.flip();
+      }
+    }
+    chars.flip();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finished = true;
+    decoded = true;
+    chars.clear().flip();
+    file.close();
+  }
+}
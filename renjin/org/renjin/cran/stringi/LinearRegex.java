@@ -0,0 +1,2006 @@
+package org.renjin.cran.stringi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheBuilder;
+
+import com.ibm.icu.text.UnicodeSet;
+
+/**
+ * Regular expression matched in time linear in the length of the input
+ *
+ * Patterns are compiled to the program of a Thompson automaton, which is run
+ * as a Pike VM: all the ways the pattern may match are followed at once, one
+ * code point of the input at a time, in order of priority, so the match found
+ * is the one java.util.regex finds by backtracking (leftmost, then by order
+ * of alternatives and greediness of quantifiers). Each step costs at most one
+ * visit of each instruction, whatever the pattern. The one difference: while
+ * searching, java.util.regex may try a match between the two chars of a
+ * surrogate pair, which only a zero-width pattern such as \B can match there,
+ * whereas a step here goes over the whole pair. Alternations of literals, such
+ * as fox|dog, are looked for directly: at each position where one of them may
+ * start, the alternatives are tried in order.
+ *
+ * Backreferences, lookaround, atomic groups and possessive quantifiers cannot
+ * be matched that way. compile() returns null for patterns using them, or any
+ * other construct (or syntax error) this class does not handle, and these are
+ * left to java.util.regex. Character classes such as \p{..}, \w and \s mean
+ * exactly the same in both engines: the predefined and POSIX classes are built
+ * from their definitions in java.util.regex, and general categories from those
+ * of java.lang.Character; patterns using any other class (such as scripts, blocks,
+ * or cased categories under CASE_INSENSITIVE) are left to java.util.regex.
+ */
+final class LinearRegex extends RegexPattern {
+
+  private static final int SUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE
+      | Pattern.UNIX_LINES | Pattern.LITERAL;
+
+  /** largest program compiled; longer ones are left to java.util.regex */
+  private static final int MAX_PROGRAM_SIZE = 1 << 16;
+
+  /** largest bound of a counted repetition */
+  private static final int MAX_REPEAT = 1000;
+
+  private static final int CLASS_CACHE_SIZE = 256;
+
+  /**
+   * Character classes (escapes such as \w or \p{..}) as evaluated by java.util.regex, keyed by escape
+   */
+  static final Cache<String, UnicodeSet> CLASS_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CLASS_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  // instructions
+  private static final int CHAR = 0;
+  private static final int CHAR2 = 1; // either of two code points
+  private static final int SET = 2;
+  private static final int SPLIT = 3; // to arg, or (with lower priority) to arg2
+  private static final int JMP = 4;
+  private static final int SAVE = 5;
+  private static final int ASSERT = 6;
+  private static final int MATCH = 7;
+
+  // assertions, as in java.util.regex
+  private static final int BEGIN = 0;
+  private static final int END = 1;
+  private static final int CARET = 2;
+  private static final int UNIX_CARET = 3;
+  private static final int DOLLAR = 4;
+  private static final int DOLLAR_MULTILINE = 5;
+  private static final int UNIX_DOLLAR = 6;
+  private static final int UNIX_DOLLAR_MULTILINE = 7;
+  private static final int WORD_BOUNDARY = 8;
+  private static final int NOT_WORD_BOUNDARY = 9;
+
+  private static final UnicodeSet ANY = new UnicodeSet(0, Character.MAX_CODE_POINT).freeze();
+  private static final UnicodeSet NOT_NEWLINE = new UnicodeSet(ANY).remove('\n').freeze();
+  private static final UnicodeSet NOT_LINE_TERMINATOR = new UnicodeSet(ANY)
+      .remove('\n').remove('\r').remove('\u0085').remove('\u2028').remove('\u2029').freeze();
+
+  private static final Unsupported UNSUPPORTED = new Unsupported();
+
+  /**
+   * Predefined (by their letter) and POSIX classes, as defined by java.util.regex
+   */
+  private static final Map<String, UnicodeSet> ASCII_CLASSES = new HashMap<String, UnicodeSet>();
+
+  /**
+   * General categories and their groups, as masks of Character.getType() values
+   */
+  private static final Map<String, Integer> CATEGORIES = new HashMap<String, Integer>();
+
+  /** categories with an upper and a lower case */
+  private static final int CASED = 1 << Character.UPPERCASE_LETTER | 1 << Character.LOWERCASE_LETTER
+      | 1 << Character.TITLECASE_LETTER;
+
+  static {
+    final UnicodeSet lower = new UnicodeSet('a', 'z');
+    final UnicodeSet upper = new UnicodeSet('A', 'Z');
+    final UnicodeSet digit = new UnicodeSet('0', '9');
+    final UnicodeSet space = new UnicodeSet('\t', '\r').add(' '); // \t \n \x0B \f \r
+    final UnicodeSet punct = new UnicodeSet(0x21, 0x2f).add(0x3a, 0x40).add(0x5b, 0x60).add(0x7b, 0x7e);
+    final UnicodeSet alpha = new UnicodeSet(lower).addAll(upper);
+    final UnicodeSet alnum = new UnicodeSet(alpha).addAll(digit);
+    final UnicodeSet graph = new UnicodeSet(alnum).addAll(punct);
+    ASCII_CLASSES.put("d", digit);
+    ASCII_CLASSES.put("s", space);
+    ASCII_CLASSES.put("w", new UnicodeSet(alnum).add('_'));
+    ASCII_CLASSES.put("Lower", lower);
+    ASCII_CLASSES.put("Upper", upper);
+    ASCII_CLASSES.put("ASCII", new UnicodeSet(0, 0x7f));
+    ASCII_CLASSES.put("Alpha", alpha);
+    ASCII_CLASSES.put("Digit", digit);
+    ASCII_CLASSES.put("Alnum", alnum);
+    ASCII_CLASSES.put("Punct", punct);
+    ASCII_CLASSES.put("Graph", graph);
+    ASCII_CLASSES.put("Print", new UnicodeSet(graph).add(' '));
+    ASCII_CLASSES.put("Blank", new UnicodeSet(' ', ' ').add('\t'));
+    ASCII_CLASSES.put("Cntrl", new UnicodeSet(0, 0x1f).add(0x7f));
+    ASCII_CLASSES.put("XDigit", new UnicodeSet(digit).add('a', 'f').add('A', 'F'));
+    ASCII_CLASSES.put("Space", space);
+    for (UnicodeSet set : ASCII_CLASSES.values()) {
+      set.freeze();
+    }
+
+    final String[] names = { "Cn", "Lu", "Ll", "Lt", "Lm", "Lo", "Mn", "Me", "Mc", "Nd", "Nl", "No", "Zs", "Zl",
+        "Zp", "Cc", "Cf", null, "Co", "Cs", "Pd", "Ps", "Pe", "Pc", "Po", "Sm", "Sc", "Sk", "So", "Pi", "Pf" };
+    for (int type = 0; type < names.length; type++) {
+      if (names[type] != null) {
+        CATEGORIES.put(names[type], 1 << type);
+      }
+    }
+    CATEGORIES.put("LC", CASED);
+    for (String group : new String[] { "L", "M", "N", "Z", "C", "P", "S" }) {
+      int types = 0;
+      for (int type = 0; type < names.length; type++) {
+        if (names[type] != null && names[type].charAt(0) == group.charAt(0)) {
+          types |= 1 << type;
+        }
+      }
+      CATEGORIES.put(group, types);
+    }
+  }
+
+  private final int[] ops;
+  private final int[] args;
+  private final int[] args2;
+  private final CodeSet[] sets;
+  private final int[] nexts; // where consuming instructions go on
+  private final int groupCount;
+  private final Map<String, Integer> groupNames;
+  private final boolean anchoredStart; // matches may only start at 0
+
+  // where a match may start: at the prefix, at a code point of the set, or anywhere if both are null
+  private final String prefix;
+  private final CodeSet first;
+
+  // the alternatives, if the pattern is an alternation of literals (or a single one), which are
+  // looked for directly rather than by running the program
+  private final String[] literals;
+
+  private LinearRegex(Program program, int groupCount, Map<String, Integer> groupNames, boolean anchoredStart,
+      String[] literals) {
+    this.ops = Arrays.copyOf(program.ops, program.size);
+    this.args = Arrays.copyOf(program.args, program.size);
+    this.args2 = Arrays.copyOf(program.args2, program.size);
+    this.sets = program.sets.toArray(new CodeSet[program.sets.size()]);
+    this.nexts = Arrays.copyOf(program.nexts, program.size);
+    this.groupCount = groupCount;
+    this.groupNames = groupNames;
+    this.anchoredStart = anchoredStart;
+    this.prefix = prefix();
+    this.first = prefix == null ? first() : null;
+    this.literals = literals;
+  }
+
+  /**
+   * @param flags
+   *          java.util.regex.Pattern flags
+   * @return the compiled pattern, or null if it is to be left to java.util.regex
+   */
+  static LinearRegex compile(String pattern, int flags) {
+    if ((flags & ~SUPPORTED_FLAGS) != 0) {
+      return null;
+    }
+    try {
+      final Parser parser = new Parser(pattern, flags);
+      final Node root = (flags & Pattern.LITERAL) != 0 ? parser.literal() : parser.parse();
+      final Program program = new Program();
+      root.emit(program);
+      program.emit(MATCH, 0, 0);
+      return new LinearRegex(program, parser.groupCount, parser.groupNames, root.isAnchoredStart(), literals(root));
+    } catch (Unsupported e) {
+      return null;
+    }
+  }
+
+  @Override
+  RegexMatcher matcher(CharSequence input, int timeLimit) {
+    return new LinearMatcher(this, timeLimit).reset(input);
+  }
+
+  /**
+   * @return the strings matched by each alternative of the pattern, if each matches one
+   *         non-empty string (with no surrogates, as the program matches code points), else null
+   */
+  private static String[] literals(Node root) {
+    final List<Node> alternatives = root instanceof Alternation
+        ? ((Alternation) root).alternatives
+        : Collections.singletonList(root);
+    final String[] literals = new String[alternatives.size()];
+    for (int k = 0; k < literals.length; k++) {
+      literals[k] = alternatives.get(k).literalString();
+      if (literals[k] == null || literals[k].isEmpty() || !CharRange.of(literals[k]).isBmp()) {
+        return null;
+      }
+    }
+    return literals;
+  }
+
+  /**
+   * @return the literal all matches start with, if any
+   */
+  private String prefix() {
+    final StringBuilder literal = new StringBuilder();
+    for (int pc = 0; ops[pc] == CHAR || ops[pc] == SAVE; ) {
+      if (ops[pc] == CHAR) {
+        literal.appendCodePoint(args[pc]);
+        pc = nexts[pc];
+      } else {
+        pc++;
+      }
+    }
+    return literal.length() > 0 ? literal.toString() : null;
+  }
+
+  /**
+   * @return the code points a match may start with, or null if it may be empty
+   */
+  private CodeSet first() {
+    final UnicodeSet set = new UnicodeSet();
+    final boolean[] visited = new boolean[ops.length];
+    final int[] stack = new int[ops.length + 1];
+    int sp = 0;
+    stack[sp++] = 0;
+    while (sp > 0) {
+      final int pc = stack[--sp];
+      if (visited[pc]) {
+        continue;
+      }
+      visited[pc] = true;
+      switch (ops[pc]) {
+        case CHAR:
+          set.add(args[pc]);
+          break;
+        case CHAR2:
+          set.add(args[pc]).add(args2[pc]);
+          break;
+        case SET:
+          set.addAll(sets[args[pc]].set);
+          break;
+        case SPLIT:
+          stack[sp++] = args2[pc];
+          stack[sp++] = args[pc];
+          break;
+        case JMP:
+          stack[sp++] = args[pc];
+          break;
+        case MATCH:
+          return null;
+        default: // SAVE, ASSERT
+          stack[sp++] = pc + 1;
+      }
+    }
+    return set.size() > Character.MAX_CODE_POINT ? null : new CodeSet(set);
+  }
+
+  /**
+   * @return the code points matched by a class escape (such as \w or \p{L}) in java.util.regex
+   * @throws Unsupported
+   *           for classes not built here
+   */
+  private static UnicodeSet jdkClass(String escape, int flags) {
+    final boolean caseInsensitive = (flags & Pattern.CASE_INSENSITIVE) != 0;
+    final String key = caseInsensitive ? "(?i)" + escape : escape;
+    UnicodeSet set = CLASS_CACHE.getIfPresent(key);
+    if (set == null) {
+      set = commonClass(escape, caseInsensitive);
+      if (set == null) {
+        throw UNSUPPORTED;
+      }
+      set.freeze();
+      CLASS_CACHE.put(key, set);
+    }
+    return set;
+  }
+
+  /**
+   * @return the code points matched by a predefined or POSIX class escape (which are
+   *         ASCII-only in java.util.regex) or by a general category, or null for any
+   *         other escape. Under CASE_INSENSITIVE java.util.regex also lets the classes
+   *         of one case match the other, in ways that differ between versions, so these
+   *         classes are left to java.util.regex.
+   */
+  private static UnicodeSet commonClass(String escape, boolean caseInsensitive) {
+    final char e = escape.charAt(1);
+    final boolean negated = e == 'P' || e == 'D' || e == 'S' || e == 'W';
+    final UnicodeSet set;
+    if (e == 'p' || e == 'P') {
+      String name = escape.length() == 3 ? escape.substring(2) : escape.substring(3, escape.length() - 1);
+      if (name.length() > 1 && ASCII_CLASSES.containsKey(name)) { // POSIX, rather than \d, \s or \w
+        if (caseInsensitive && ("Lower".equals(name) || "Upper".equals(name))) {
+          return null;
+        }
+        set = ASCII_CLASSES.get(name);
+      } else {
+        if (name.startsWith("Is")) {
+          name = name.substring(2);
+        } else if (name.startsWith("gc=")) {
+          name = name.substring(3);
+        } else if (name.startsWith("general_category=")) {
+          name = name.substring(17);
+        }
+        final Integer types = CATEGORIES.get(name);
+        if (types == null || caseInsensitive && (types & CASED) != 0) {
+          return null;
+        }
+        set = Categories.of(types);
+      }
+    } else {
+      set = ASCII_CLASSES.get(String.valueOf(Character.toLowerCase(e)));
+    }
+    return negated ? new UnicodeSet(set).complement() : new UnicodeSet(set);
+  }
+
+  /**
+   * Code points of each general category, as in java.lang.Character, found on first use
+   */
+  private static final class Categories {
+    private static final UnicodeSet[] SETS = new UnicodeSet[Character.FINAL_QUOTE_PUNCTUATION + 1];
+
+    static {
+      // the ranges of each category, as start and end pairs, from which sets are built at once
+      final int[][] ranges = new int[SETS.length][16];
+      final int[] sizes = new int[SETS.length];
+      int rangeStart = 0;
+      int rangeType = Character.getType(0);
+      for (int cp = 1; cp <= Character.MAX_CODE_POINT + 1; cp++) {
+        final int type = cp <= Character.MAX_CODE_POINT ? Character.getType(cp) : -1;
+        if (type != rangeType) {
+          if (sizes[rangeType] == ranges[rangeType].length) {
+            ranges[rangeType] = Arrays.copyOf(ranges[rangeType], 2 * sizes[rangeType]);
+          }
+          ranges[rangeType][sizes[rangeType]++] = rangeStart;
+          ranges[rangeType][sizes[rangeType]++] = cp - 1;
+          rangeStart = cp;
+          rangeType = type;
+        }
+      }
+      for (int type = 0; type < SETS.length; type++) {
+        SETS[type] = new UnicodeSet(Arrays.copyOf(ranges[type], sizes[type])).freeze();
+      }
+    }
+
+    /**
+     * @param types
+     *          mask of the categories, with bit t set for Character.getType() t
+     */
+    static UnicodeSet of(int types) {
+      final UnicodeSet set = new UnicodeSet();
+      for (int type = 0; type < SETS.length; type++) {
+        if ((types & (1 << type)) != 0) {
+          set.addAll(SETS[type]);
+        }
+      }
+      return set;
+    }
+  }
+
+  /**
+   * A pattern, or a part of one, as parsed
+   */
+  private abstract static class Node {
+    abstract void emit(Program program);
+
+    /**
+     * @return whether the node may match the empty string
+     */
+    abstract boolean isNullable();
+
+    /**
+     * @return whether the node may match a non-empty string
+     */
+    abstract boolean isConsuming();
+
+    /**
+     * @return whether the node only matches at the beginning of the input
+     */
+    boolean isAnchoredStart() {
+      return false;
+    }
+
+    /**
+     * @return the one string the node matches, if there is only one (so not for a letter under
+     *         CASE_INSENSITIVE), else null
+     */
+    String literalString() {
+      return null;
+    }
+  }
+
+  private static final class Literal extends Node {
+    private final int codePoint;
+    private final int other; // the other case, or codePoint itself
+
+    Literal(int codePoint, int other) {
+      this.codePoint = codePoint;
+      this.other = other;
+    }
+
+    @Override
+    void emit(Program program) {
+      program.emit(codePoint == other ? CHAR : CHAR2, codePoint, other);
+    }
+
+    @Override
+    String literalString() {
+      return codePoint == other ? new String(Character.toChars(codePoint)) : null;
+    }
+
+    @Override
+    boolean isNullable() {
+      return false;
+    }
+
+    @Override
+    boolean isConsuming() {
+      return true;
+    }
+  }
+
+  private static final class CharClass extends Node {
+    private final CodeSet set;
+
+    CharClass(UnicodeSet set) {
+      this.set = new CodeSet(set);
+    }
+
+    @Override
+    void emit(Program program) {
+      program.emit(SET, program.indexOf(set), 0);
+    }
+
+    @Override
+    boolean isNullable() {
+      return false;
+    }
+
+    @Override
+    boolean isConsuming() {
+      return true;
+    }
+  }
+
+  private static final class Assertion extends Node {
+    private final int kind;
+
+    Assertion(int kind) {
+      this.kind = kind;
+    }
+
+    @Override
+    void emit(Program program) {
+      program.emit(ASSERT, kind, 0);
+    }
+
+    @Override
+    boolean isNullable() {
+      return true;
+    }
+
+    @Override
+    boolean isConsuming() {
+      return false;
+    }
+
+    @Override
+    boolean isAnchoredStart() {
+      return kind == BEGIN;
+    }
+  }
+
+  private static final class Sequence extends Node {
+    private final List<Node> nodes;
+
+    Sequence(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    void emit(Program program) {
+      for (Node node : nodes) {
+        node.emit(program);
+      }
+    }
+
+    @Override
+    boolean isNullable() {
+      for (Node node : nodes) {
+        if (!node.isNullable()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    boolean isConsuming() {
+      for (Node node : nodes) {
+        if (node.isConsuming()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    boolean isAnchoredStart() {
+      return !nodes.isEmpty() && nodes.get(0).isAnchoredStart();
+    }
+
+    @Override
+    String literalString() {
+      final StringBuilder literal = new StringBuilder();
+      for (Node node : nodes) {
+        final String s = node.literalString();
+        if (s == null) {
+          return null;
+        }
+        literal.append(s);
+      }
+      return literal.toString();
+    }
+  }
+
+  private static final class Alternation extends Node {
+    private final List<Node> alternatives;
+
+    Alternation(List<Node> alternatives) {
+      this.alternatives = alternatives;
+    }
+
+    @Override
+    void emit(Program program) {
+      final int n = alternatives.size();
+      final int[] jumps = new int[n - 1];
+      for (int k = 0; k < n - 1; k++) {
+        final int split = program.emit(SPLIT, 0, 0);
+        alternatives.get(k).emit(program);
+        jumps[k] = program.emit(JMP, 0, 0);
+        program.patch(split, split + 1, program.size);
+      }
+      alternatives.get(n - 1).emit(program);
+      for (int jump : jumps) {
+        program.patch(jump, program.size, 0);
+      }
+    }
+
+    @Override
+    boolean isNullable() {
+      for (Node alternative : alternatives) {
+        if (alternative.isNullable()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    boolean isConsuming() {
+      for (Node alternative : alternatives) {
+        if (alternative.isConsuming()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class Repetition extends Node {
+    private final Node node;
+    private final int min;
+    private final int max; // -1 if unbounded
+    private final boolean greedy;
+
+    Repetition(Node node, int min, int max, boolean greedy) {
+      this.node = node;
+      this.min = min;
+      this.max = max;
+      this.greedy = greedy;
+    }
+
+    @Override
+    void emit(Program program) {
+      if (node.isNullable()) {
+        emitNullable(program);
+        return;
+      }
+      for (int k = 0; k < min; k++) {
+        node.emit(program);
+      }
+      if (max < 0) {
+        final int split = program.emit(SPLIT, 0, 0);
+        node.emit(program);
+        program.emit(JMP, split, 0);
+        branch(program, split);
+      } else {
+        // x{0,3} is (?:x(?:x(?:x)?)?)?
+        final int[] splits = new int[max - min];
+        for (int k = 0; k < splits.length; k++) {
+          splits[k] = program.emit(SPLIT, 0, 0);
+          node.emit(program);
+        }
+        for (int split : splits) {
+          branch(program, split);
+        }
+      }
+    }
+
+    /**
+     * As in java.util.regex, an iteration matching the empty string is the
+     * last one, even before min iterations. So each iteration is emitted
+     * twice: it starts in a copy ending the repetition, and goes on in a copy
+     * continuing it as soon as a code point is consumed.
+     */
+    private void emitNullable(Program program) {
+      final int iterations = max < 0 ? min + 1 : max;
+      final int[] splits = new int[iterations];
+      final int[] exits = new int[iterations];
+      for (int k = 0; k < iterations; k++) {
+        splits[k] = k < min ? -1 : program.emit(SPLIT, 0, 0);
+        final int empty = program.size;
+        node.emit(program);
+        exits[k] = program.emit(JMP, 0, 0);
+        final int consumed = program.size;
+        node.emit(program);
+        program.redirect(empty, consumed - 1, consumed);
+        if (max < 0 && k == min) {
+          program.emit(JMP, splits[k], 0);
+        }
+      }
+      for (int k = 0; k < iterations; k++) {
+        if (splits[k] >= 0) {
+          branch(program, splits[k]);
+        }
+        program.patch(exits[k], program.size, 0);
+      }
+    }
+
+    /**
+     * Point the split to the repeated node following it and to the end of the repetition
+     */
+    private void branch(Program program, int split) {
+      if (greedy) {
+        program.patch(split, split + 1, program.size);
+      } else {
+        program.patch(split, program.size, split + 1);
+      }
+    }
+
+    @Override
+    boolean isNullable() {
+      return min == 0 || node.isNullable();
+    }
+
+    @Override
+    boolean isConsuming() {
+      return max != 0 && node.isConsuming();
+    }
+
+    @Override
+    boolean isAnchoredStart() {
+      return min > 0 && node.isAnchoredStart();
+    }
+  }
+
+  private static final class Capture extends Node {
+    private final Node node;
+    private final int group;
+
+    Capture(Node node, int group) {
+      this.node = node;
+      this.group = group;
+    }
+
+    @Override
+    void emit(Program program) {
+      program.emit(SAVE, 2 * group, 0);
+      node.emit(program);
+      program.emit(SAVE, 2 * group + 1, 0);
+    }
+
+    @Override
+    boolean isNullable() {
+      return node.isNullable();
+    }
+
+    @Override
+    boolean isConsuming() {
+      return node.isConsuming();
+    }
+
+    @Override
+    boolean isAnchoredStart() {
+      return node.isAnchoredStart();
+    }
+  }
+
+  /**
+   * Program being emitted
+   */
+  private static final class Program {
+    private int[] ops = new int[64];
+    private int[] args = new int[64];
+    private int[] args2 = new int[64];
+    private int[] nexts = new int[64];
+    private int size;
+    private final List<CodeSet> sets = new ArrayList<CodeSet>();
+    private final Map<CodeSet, Integer> setIndexes = new IdentityHashMap<CodeSet, Integer>();
+
+    /**
+     * @return address of the instruction
+     */
+    int emit(int op, int arg, int arg2) {
+      if (size == MAX_PROGRAM_SIZE) {
+        throw UNSUPPORTED;
+      }
+      if (size == ops.length) {
+        ops = Arrays.copyOf(ops, 2 * size);
+        args = Arrays.copyOf(args, 2 * size);
+        args2 = Arrays.copyOf(args2, 2 * size);
+        nexts = Arrays.copyOf(nexts, 2 * size);
+      }
+      nexts[size] = size + 1;
+      ops[size] = op;
+      args[size] = arg;
+      args2[size] = arg2;
+      return size++;
+    }
+
+    void patch(int pc, int arg, int arg2) {
+      args[pc] = arg;
+      args2[pc] = arg2;
+    }
+
+    /**
+     * Make the consuming instructions of the code in [start, end) go on in the same code copied to target
+     */
+    void redirect(int start, int end, int target) {
+      for (int pc = start; pc < end; pc++) {
+        if (ops[pc] == CHAR || ops[pc] == CHAR2 || ops[pc] == SET) {
+          nexts[pc] += target - start;
+        }
+      }
+    }
+
+    int indexOf(CodeSet set) {
+      Integer index = setIndexes.get(set);
+      if (index == null) {
+        index = sets.size();
+        sets.add(set);
+        setIndexes.put(set, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Recursive descent parser of the java.util.regex syntax, throwing
+   * UNSUPPORTED on anything it does not handle (including syntax errors, which
+   * java.util.regex then reports)
+   */
+  private static final class Parser {
+    private final String pattern;
+    private final int length;
+    private int i;
+    private int flags;
+    private int groupCount;
+    private final Map<String, Integer> groupNames = new HashMap<String, Integer>();
+
+    Parser(String pattern, int flags) {
+      this.pattern = pattern;
+      this.length = pattern.length();
+      this.flags = flags;
+    }
+
+    Node parse() {
+      final Node node = alternation();
+      if (i < length) {
+        throw UNSUPPORTED; // unmatched ')'
+      }
+      return node;
+    }
+
+    /**
+     * @return the whole pattern as a literal
+     */
+    Node literal() {
+      final List<Node> nodes = new ArrayList<Node>();
+      while (i < length) {
+        final int c = pattern.codePointAt(i);
+        i += Character.charCount(c);
+        nodes.add(literal(c));
+      }
+      return new Sequence(nodes);
+    }
+
+    private boolean has(int flag) {
+      return (flags & flag) != 0;
+    }
+
+    private boolean at(char c) {
+      return i < length && pattern.charAt(i) == c;
+    }
+
+    private Node alternation() {
+      final Node first = sequence();
+      if (!at('|')) {
+        return first;
+      }
+      final List<Node> alternatives = new ArrayList<Node>();
+      alternatives.add(first);
+      while (at('|')) {
+        i++;
+        alternatives.add(sequence());
+      }
+      return new Alternation(alternatives);
+    }
+
+    private Node sequence() {
+      final List<Node> nodes = new ArrayList<Node>();
+      while (i < length && pattern.charAt(i) != '|' && pattern.charAt(i) != ')') {
+        final Node atom = atom();
+        if (atom != null) {
+          nodes.add(quantified(atom));
+        }
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Sequence(nodes);
+    }
+
+    /**
+     * @return the next atom, or null for a group only setting flags
+     */
+    private Node atom() {
+      final int c = pattern.codePointAt(i);
+      switch (c) {
+        case '(':
+          return group();
+        case '[':
+          i++;
+          return new CharClass(charClass());
+        case '.':
+          i++;
+          return new CharClass(has(Pattern.DOTALL) ? ANY : has(Pattern.UNIX_LINES) ? NOT_NEWLINE : NOT_LINE_TERMINATOR);
+        case '^':
+          i++;
+          if (has(Pattern.MULTILINE)) {
+            return new Assertion(has(Pattern.UNIX_LINES) ? UNIX_CARET : CARET);
+          }
+          return new Assertion(BEGIN);
+        case '$':
+          i++;
+          return new Assertion(dollar(has(Pattern.MULTILINE)));
+        case '\\':
+          i++;
+          return escape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          throw UNSUPPORTED;
+        default:
+          i += Character.charCount(c);
+          return literal(c);
+      }
+    }
+
+    private int dollar(boolean multiline) {
+      if (has(Pattern.UNIX_LINES)) {
+        return multiline ? UNIX_DOLLAR_MULTILINE : UNIX_DOLLAR;
+      }
+      return multiline ? DOLLAR_MULTILINE : DOLLAR;
+    }
+
+    private Node literal(int c) {
+      if (has(Pattern.CASE_INSENSITIVE) && isAsciiLetter(c)) {
+        return new Literal(c, c ^ 0x20);
+      }
+      return new Literal(c, c);
+    }
+
+    private Node quantified(Node atom) {
+      if (i >= length) {
+        return atom;
+      }
+      final int min;
+      final int max;
+      switch (pattern.charAt(i)) {
+        case '*':
+          min = 0;
+          max = -1;
+          i++;
+          break;
+        case '+':
+          min = 1;
+          max = -1;
+          i++;
+          break;
+        case '?':
+          min = 0;
+          max = 1;
+          i++;
+          break;
+        case '{':
+          i++;
+          min = number();
+          if (at(',')) {
+            i++;
+            max = at('}') ? -1 : number();
+          } else {
+            max = min;
+          }
+          if (!at('}') || (max >= 0 && max < min)) {
+            throw UNSUPPORTED;
+          }
+          i++;
+          break;
+        default:
+          return atom;
+      }
+      if (!atom.isConsuming()) {
+        throw UNSUPPORTED; // repeated assertions or empty groups
+      }
+      boolean greedy = true;
+      if (at('?')) {
+        greedy = false;
+        i++;
+      } else if (at('+')) {
+        throw UNSUPPORTED; // possessive
+      }
+      if (i < length && "*+?{".indexOf(pattern.charAt(i)) >= 0) {
+        throw UNSUPPORTED;
+      }
+      return new Repetition(atom, min, max, greedy);
+    }
+
+    private int number() {
+      final int start = i;
+      while (i < length && i - start < 5 && isAsciiDigit(pattern.charAt(i))) {
+        i++;
+      }
+      if (i == start) {
+        throw UNSUPPORTED;
+      }
+      final int n = Integer.parseInt(pattern.substring(start, i));
+      if (n > MAX_REPEAT) {
+        throw UNSUPPORTED;
+      }
+      return n;
+    }
+
+    private Node group() {
+      i++; // (
+      final int saved = flags;
+      final Node node;
+      if (at('?')) {
+        i++;
+        if (i >= length) {
+          throw UNSUPPORTED;
+        }
+        final char c = pattern.charAt(i);
+        if (c == ':') {
+          i++;
+          node = alternation();
+        } else if (c == '<') {
+          i++;
+          if (at('=') || at('!')) {
+            throw UNSUPPORTED; // lookbehind
+          }
+          final String name = groupName();
+          final int group = ++groupCount;
+          groupNames.put(name, group);
+          node = new Capture(alternation(), group);
+        } else {
+          inlineFlags();
+          if (at(')')) {
+            i++;
+            return null; // the flags stay in effect until the end of the enclosing group
+          }
+          i++; // :
+          node = alternation();
+        }
+      } else {
+        final int group = ++groupCount;
+        node = new Capture(alternation(), group);
+      }
+      if (!at(')')) {
+        throw UNSUPPORTED;
+      }
+      i++;
+      flags = saved;
+      return node;
+    }
+
+    private String groupName() {
+      final int start = i;
+      while (i < length && (isAsciiLetter(pattern.charAt(i)) || (i > start && isAsciiDigit(pattern.charAt(i))))) {
+        i++;
+      }
+      if (i == start || !at('>')) {
+        throw UNSUPPORTED;
+      }
+      final String name = pattern.substring(start, i++);
+      if (groupNames.containsKey(name)) {
+        throw UNSUPPORTED;
+      }
+      return name;
+    }
+
+    /**
+     * Parse flags such as i or s-m, up to the following ) or :
+     */
+    private void inlineFlags() {
+      boolean on = true;
+      for (; i < length; i++) {
+        final int flag;
+        switch (pattern.charAt(i)) {
+          case 'i':
+            flag = Pattern.CASE_INSENSITIVE;
+            break;
+          case 's':
+            flag = Pattern.DOTALL;
+            break;
+          case 'm':
+            flag = Pattern.MULTILINE;
+            break;
+          case 'd':
+            flag = Pattern.UNIX_LINES;
+            break;
+          case '-':
+            on = false;
+            continue;
+          case ')':
+          case ':':
+            return;
+          default:
+            throw UNSUPPORTED; // lookahead, atomic groups, or flags such as x or u
+        }
+        flags = on ? flags | flag : flags & ~flag;
+      }
+      throw UNSUPPORTED;
+    }
+
+    /**
+     * @return the node of an escape outside of classes, after the backslash
+     */
+    private Node escape() {
+      if (i >= length) {
+        throw UNSUPPORTED;
+      }
+      final int c = pattern.codePointAt(i);
+      i += Character.charCount(c);
+      switch (c) {
+        case 'A':
+          return new Assertion(BEGIN);
+        case 'Z':
+          return new Assertion(dollar(false));
+        case 'z':
+          return new Assertion(END);
+        case 'b':
+          if (at('{')) {
+            throw UNSUPPORTED;
+          }
+          return new Assertion(WORD_BOUNDARY);
+        case 'B':
+          return new Assertion(NOT_WORD_BOUNDARY);
+        case 'Q':
+          return quote();
+        case 'd':
+        case 'D':
+        case 's':
+        case 'S':
+        case 'w':
+        case 'W':
+          return new CharClass(jdkClass("\\" + (char) c, flags));
+        case 'p':
+        case 'P':
+          return new CharClass(jdkClass(property(), flags));
+        default:
+          return literal(escapedChar(c));
+      }
+    }
+
+    /**
+     * @return \p{..} or \pX, of which the p or P was just read
+     */
+    private String property() {
+      final int start = i - 2;
+      if (at('{')) {
+        final int close = pattern.indexOf('}', i);
+        if (close < 0) {
+          throw UNSUPPORTED;
+        }
+        i = close + 1;
+      } else if (i < length) {
+        i += Character.charCount(pattern.codePointAt(i));
+      } else {
+        throw UNSUPPORTED;
+      }
+      return pattern.substring(start, i);
+    }
+
+    private Node quote() {
+      final int end = pattern.indexOf("\\E", i);
+      final String quoted = pattern.substring(i, end < 0 ? length : end);
+      i = end < 0 ? length : end + 2;
+      final List<Node> nodes = new ArrayList<Node>();
+      for (int k = 0; k < quoted.length(); ) {
+        final int c = quoted.codePointAt(k);
+        k += Character.charCount(c);
+        nodes.add(literal(c));
+      }
+      return new Sequence(nodes);
+    }
+
+    /**
+     * @return the code point denoted by an escape such as \t or \x41, of which c was just read
+     */
+    private int escapedChar(int c) {
+      switch (c) {
+        case 't':
+          return '\t';
+        case 'n':
+          return '\n';
+        case 'r':
+          return '\r';
+        case 'f':
+          return '\f';
+        case 'a':
+          return '\u0007';
+        case 'e':
+          return '\u001B';
+        case 'c':
+          if (i >= length) {
+            throw UNSUPPORTED;
+          }
+          return pattern.charAt(i++) ^ 64;
+        case '0':
+          return octal();
+        case 'x':
+          return hex();
+        case 'u':
+          final int unit = hex(4);
+          if (Character.isHighSurrogate((char) unit) && pattern.startsWith("\\u", i)) {
+            final int start = i;
+            i += 2;
+            final int low = hex(4);
+            if (Character.isLowSurrogate((char) low)) {
+              return Character.toCodePoint((char) unit, (char) low);
+            }
+            i = start;
+          }
+          return unit;
+        default:
+          if (isAsciiLetter(c) || isAsciiDigit(c)) {
+            throw UNSUPPORTED; // backreferences and other escapes
+          }
+          return c;
+      }
+    }
+
+    private int octal() {
+      if (i >= length || !isOctalDigit(pattern.charAt(i))) {
+        throw UNSUPPORTED;
+      }
+      final int n = pattern.charAt(i++) - '0';
+      if (i >= length || !isOctalDigit(pattern.charAt(i))) {
+        return n;
+      }
+      final int m = pattern.charAt(i++) - '0';
+      if (n > 3 || i >= length || !isOctalDigit(pattern.charAt(i))) {
+        return n * 8 + m;
+      }
+      return n * 64 + m * 8 + (pattern.charAt(i++) - '0');
+    }
+
+    private int hex() {
+      if (at('{')) {
+        final int close = pattern.indexOf('}', i);
+        if (close < 0 || close == i + 1 || close - i > 7) {
+          throw UNSUPPORTED;
+        }
+        i++;
+        final int value = hex(close - i);
+        i++;
+        if (value > Character.MAX_CODE_POINT) {
+          throw UNSUPPORTED;
+        }
+        return value;
+      }
+      return hex(2);
+    }
+
+    private int hex(int digits) {
+      int value = 0;
+      for (int k = 0; k < digits; k++) {
+        final int digit = i < length && pattern.charAt(i) < 128 ? Character.digit(pattern.charAt(i), 16) : -1;
+        if (digit < 0) {
+          throw UNSUPPORTED;
+        }
+        value = 16 * value + digit;
+        i++;
+      }
+      return value;
+    }
+
+    /**
+     * @return the set of a class, after its [
+     */
+    private UnicodeSet charClass() {
+      boolean negated = false;
+      if (at('^')) {
+        negated = true;
+        i++;
+      }
+      UnicodeSet intersection = null;
+      UnicodeSet union = new UnicodeSet();
+      boolean empty = true;
+      boolean nested = false;
+      while (true) {
+        if (i >= length) {
+          throw UNSUPPORTED;
+        }
+        final char c = pattern.charAt(i);
+        if (c == ']') {
+          if (empty) {
+            throw UNSUPPORTED;
+          }
+          i++;
+          break;
+        } else if (c == '[') {
+          i++;
+          union.addAll(charClass());
+          nested = true;
+        } else if (c == '&' && pattern.startsWith("&&", i)) {
+          if (empty) {
+            throw UNSUPPORTED;
+          }
+          i += 2;
+          intersection = intersection == null ? union : intersection.retainAll(union);
+          union = new UnicodeSet();
+          empty = true;
+          nested = true;
+          continue;
+        } else {
+          classAtom(union);
+        }
+        empty = false;
+      }
+      final UnicodeSet set = intersection == null ? union : intersection.retainAll(union);
+      if (negated) {
+        if (nested) {
+          throw UNSUPPORTED; // java.util.regex negates these differently from version to version
+        }
+        set.complement();
+      }
+      return set;
+    }
+
+    /**
+     * Add the next character, range or class escape of a class to the set
+     */
+    private void classAtom(UnicodeSet set) {
+      final int low = classChar(set);
+      if (low < 0) {
+        if (isRange()) {
+          throw UNSUPPORTED;
+        }
+        return;
+      }
+      int high = low;
+      if (isRange()) {
+        i++;
+        if (at('[')) {
+          throw UNSUPPORTED;
+        }
+        high = classChar(null);
+        if (high < low) {
+          throw UNSUPPORTED;
+        }
+      }
+      set.add(low, high);
+      if (has(Pattern.CASE_INSENSITIVE)) {
+        for (int c = Math.max(low, 'A'), last = Math.min(high, 'z'); c <= last; c++) {
+          if (isAsciiLetter(c)) {
+            set.add(c ^ 0x20);
+          }
+        }
+      }
+    }
+
+    private boolean isRange() {
+      return at('-') && i + 1 < length && pattern.charAt(i + 1) != ']';
+    }
+
+    /**
+     * @param set
+     *          set to add a class escape to, or null if one is not allowed here
+     * @return the next character of a class, or -1 if it was a class escape
+     */
+    private int classChar(UnicodeSet set) {
+      final int c = pattern.codePointAt(i);
+      i += Character.charCount(c);
+      if (c != '\\') {
+        return c;
+      }
+      if (i >= length) {
+        throw UNSUPPORTED;
+      }
+      final int e = pattern.codePointAt(i);
+      i += Character.charCount(e);
+      switch (e) {
+        case 'd':
+        case 'D':
+        case 's':
+        case 'S':
+        case 'w':
+        case 'W':
+        case 'p':
+        case 'P':
+          if (set == null) {
+            throw UNSUPPORTED;
+          }
+          set.addAll(jdkClass(e == 'p' || e == 'P' ? property() : "\\" + (char) e, flags));
+          return -1;
+        default:
+          return escapedChar(e);
+      }
+    }
+  }
+
+  private static boolean isAsciiLetter(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isAsciiDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isOctalDigit(int c) {
+    return c >= '0' && c <= '7';
+  }
+
+  /**
+   * Set of code points, with a table for ASCII
+   */
+  private static final class CodeSet {
+    private final boolean[] ascii = new boolean[128];
+    private final UnicodeSet set;
+
+    CodeSet(UnicodeSet set) {
+      this.set = set.isFrozen() ? set : new UnicodeSet(set).freeze();
+      for (int c = 0; c < ascii.length; c++) {
+        ascii[c] = set.contains(c);
+      }
+    }
+
+    boolean contains(int c) {
+      return c < 128 ? ascii[c] : set.contains(c);
+    }
+
+    /**
+     * @return index of the first code point of s in the set, at or after from, or -1
+     */
+    int indexIn(String s, int from) {
+      final int length = s.length();
+      for (int k = from; k < length; ) {
+        final char c = s.charAt(k);
+        if (c < 128) {
+          if (ascii[c]) {
+            return k;
+          }
+          k++;
+        } else {
+          final int cp = s.codePointAt(k);
+          if (set.contains(cp)) {
+            return k;
+          }
+          k += Character.charCount(cp);
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Instructions reached at the current position, in order of priority, with the captures of each
+   */
+  private static final class Threads {
+    private final int[] dense;
+    private final int[] sparse;
+    private final int[] captures;
+    private final int slots;
+    private int size;
+
+    Threads(int programSize, int slots) {
+      this.dense = new int[programSize];
+      this.sparse = new int[programSize];
+      this.captures = new int[programSize * slots];
+      this.slots = slots;
+    }
+
+    boolean contains(int pc) {
+      final int k = sparse[pc];
+      return k < size && dense[k] == pc;
+    }
+
+    void add(int pc) {
+      sparse[pc] = size;
+      dense[size++] = pc;
+    }
+  }
+
+  private static final class LinearMatcher extends RegexMatcher {
+    private final LinearRegex regex;
+    private final long timeLimit; // in nanoseconds, 0 for none
+    private final int[] stack;
+    private final int[] work;
+    private final int[] initial;
+
+    // when only the bounds of matches are needed, threads capture where they started
+    private final Threads current;
+    private final Threads next;
+    private Threads wideCurrent;
+    private Threads wideNext;
+
+    private String input;
+    private int length;
+    private boolean matched;
+    private int first;
+    private int last;
+    private final int[] bounds = new int[2];
+    private int[] groups;
+    private boolean groupsKnown;
+
+    private String replacement;
+    private Replacement compiledReplacement;
+
+    private long deadline;
+    private int countdown;
+
+    LinearMatcher(LinearRegex regex, int timeLimit) {
+      this.regex = regex;
+      this.timeLimit = timeLimit * 1000000L;
+      final int size = regex.ops.length;
+      final int slots = 2 * (regex.groupCount + 1);
+      this.stack = new int[2 * size + 2];
+      this.work = new int[slots];
+      this.initial = new int[slots];
+      this.current = new Threads(size, 1);
+      this.next = new Threads(size, 1);
+    }
+
+    @Override
+    RegexMatcher reset(CharSequence input) {
+      this.input = input.toString();
+      this.length = this.input.length();
+      this.matched = false;
+      this.first = -1;
+      this.last = 0;
+      return this;
+    }
+
+    @Override
+    boolean find() {
+      int from = last;
+      if (from == first) {
+        from++; // the previous match was empty
+      }
+      matched = from <= length && run(from, false, false, current, next, bounds);
+      if (!matched) {
+        first = -1;
+        return false;
+      }
+      first = bounds[0];
+      last = bounds[1];
+      groupsKnown = false;
+      return true;
+    }
+
+    @Override
+    boolean found() {
+      matched = false;
+      first = -1;
+      last = 0;
+      return run(0, false, true, current, next, bounds);
+    }
+
+    @Override
+    int start(int group) {
+      if (group == 0) {
+        checkMatch();
+        return first;
+      }
+      return groups(group)[2 * group];
+    }
+
+    @Override
+    int end(int group) {
+      if (group == 0) {
+        checkMatch();
+        return last;
+      }
+      return groups(group)[2 * group + 1];
+    }
+
+    @Override
+    int groupCount() {
+      return regex.groupCount;
+    }
+
+    private void checkMatch() {
+      if (!matched) {
+        throw new IllegalStateException("No match available");
+      }
+    }
+
+    /**
+     * @return the bounds of all groups of the current match, found by matching again from its start
+     */
+    private int[] groups(int group) {
+      checkMatch();
+      if (group < 0 || group > regex.groupCount) {
+        throw new IndexOutOfBoundsException("No group " + group);
+      }
+      if (!groupsKnown) {
+        if (wideCurrent == null) {
+          final int slots = 2 * (regex.groupCount + 1);
+          groups = new int[slots];
+          wideCurrent = new Threads(regex.ops.length, slots);
+          wideNext = new Threads(regex.ops.length, slots);
+        }
+        run(first, true, false, wideCurrent, wideNext, groups);
+        groupsKnown = true;
+      }
+      return groups;
+    }
+
+    @Override
+    String replaceAll(String replacement) {
+      return replace(replacement, true);
+    }
+
+    @Override
+    String replaceFirst(String replacement) {
+      return replace(replacement, false);
+    }
+
+    private String replace(String replacement, boolean all) {
+      matched = false;
+      first = -1;
+      last = 0;
+      if (!find()) {
+        return input;
+      }
+      if (!replacement.equals(this.replacement)) {
+        compiledReplacement = new Replacement(replacement, regex);
+        this.replacement = replacement;
+      }
+      final StringBuilder result = new StringBuilder(length + replacement.length());
+      int tail = 0;
+      do {
+        result.append(input, tail, first);
+        compiledReplacement.appendTo(result, this, input);
+        tail = last;
+      } while (all && find());
+      result.append(input, tail, length);
+      return result.toString();
+    }
+
+    /**
+     * Run the program on the input from the given position
+     *
+     * @param anchored
+     *          only look for a match starting at from
+     * @param earliest
+     *          stop at the first match found, whichever it is, without filling in the bounds
+     * @param bounds
+     *          filled in with the start and end of the match, and of each captured group if the
+     *          threads have room for them
+     * @return whether a match was found
+     */
+    private boolean run(int from, boolean anchored, boolean earliest, Threads current, Threads next, int[] bounds) {
+      final int[] ops = regex.ops;
+      final int[] args = regex.args;
+      final int[] args2 = regex.args2;
+      final int[] nexts = regex.nexts;
+      final CodeSet[] sets = regex.sets;
+      final String input = this.input;
+      final int length = this.length;
+      final int slots = current.slots;
+      boolean matched = false;
+      current.size = 0;
+      int pos = from;
+      if (timeLimit > 0) {
+        deadline = System.nanoTime() + timeLimit;
+        countdown = CLOCK_INTERVAL;
+      }
+      if (regex.literals != null) {
+        return runLiterals(from, anchored, bounds);
+      }
+      while (true) {
+        if (!matched && (pos == from || !anchored)) {
+          if (current.size == 0 && !anchored) {
+            pos = skip(pos);
+            if (pos < 0) {
+              break;
+            }
+          }
+          if (regex.anchoredStart && pos != 0) {
+            if (current.size == 0) {
+              break;
+            }
+          } else {
+            Arrays.fill(initial, 0, slots, -1);
+            initial[0] = pos;
+            addThread(current, 0, pos, initial, 0);
+          }
+        }
+        if (current.size == 0) {
+          break;
+        }
+        if (timeLimit > 0 && (countdown -= current.size) <= 0) {
+          // threads stepped over, rather than code points, as a step may take up to one per instruction
+          countdown = CLOCK_INTERVAL;
+          if (System.nanoTime() - deadline > 0) {
+            throw timeOut();
+          }
+        }
+        final int c;
+        final int following;
+        if (pos < length) {
+          c = input.codePointAt(pos);
+          following = pos + Character.charCount(c);
+        } else {
+          c = -1;
+          following = pos + 1;
+        }
+        next.size = 0;
+        final int[] pcs = current.dense;
+        final int[] captures = current.captures;
+        threads:
+        for (int k = 0, n = current.size; k < n; k++) {
+          final int pc = pcs[k];
+          switch (ops[pc]) {
+            case CHAR:
+              if (c == args[pc]) {
+                addThread(next, nexts[pc], following, captures, pc * slots);
+              }
+              break;
+            case CHAR2:
+              if (c == args[pc] || c == args2[pc]) {
+                addThread(next, nexts[pc], following, captures, pc * slots);
+              }
+              break;
+            case SET:
+              if (c >= 0 && sets[args[pc]].contains(c)) {
+                addThread(next, nexts[pc], following, captures, pc * slots);
+              }
+              break;
+            case MATCH:
+              if (earliest) {
+                return true;
+              }
+              matched = true;
+              System.arraycopy(captures, pc * slots, bounds, 0, slots);
+              bounds[1] = pos;
+              break threads; // threads of lower priority are cut off
+            default:
+              // epsilon instructions were followed when the thread was added
+          }
+        }
+        final Threads swap = current;
+        current = next;
+        next = swap;
+        if (pos >= length) {
+          break;
+        }
+        pos = following;
+      }
+      return matched;
+    }
+
+    /**
+     * Run of a pattern which is an alternation of literals: the match is the first
+     * alternative found at the first position where there is one, as in the program
+     */
+    private boolean runLiterals(int from, boolean anchored, int[] bounds) {
+      final String[] literals = regex.literals;
+      int pos = from;
+      while (pos < length) {
+        if (!anchored) {
+          pos = skip(pos);
+          if (pos < 0) {
+            break;
+          }
+        }
+        if (timeLimit > 0 && (countdown -= literals.length) <= 0) {
+          countdown = CLOCK_INTERVAL;
+          if (System.nanoTime() - deadline > 0) {
+            throw timeOut();
+          }
+        }
+        for (String literal : literals) {
+          if (input.startsWith(literal, pos)) {
+            bounds[0] = pos;
+            bounds[1] = pos + literal.length();
+            return true;
+          }
+        }
+        if (anchored) {
+          break;
+        }
+        pos += Character.charCount(input.codePointAt(pos));
+      }
+      return false;
+    }
+
+    /**
+     * @return the first position at or after pos where a match may start, or -1
+     */
+    private int skip(int pos) {
+      if (regex.prefix != null) {
+        return input.indexOf(regex.prefix, pos);
+      } else if (regex.first != null) {
+        return regex.first.indexIn(input, pos);
+      }
+      return pos;
+    }
+
+    /**
+     * Add the thread at pc to the list, following jumps, splits, saves and assertions
+     *
+     * @param captures
+     *          captures of the thread, at the offset
+     */
+    private void addThread(Threads threads, int pc, int pos, int[] captures, int offset) {
+      final int[] ops = regex.ops;
+      final int[] args = regex.args;
+      final int slots = threads.slots;
+      final int[] stack = this.stack;
+      final int[] work = this.work;
+      System.arraycopy(captures, offset, work, 0, slots);
+      int sp = 0;
+      stack[sp++] = pc;
+      while (sp > 0) {
+        pc = stack[--sp];
+        if (pc < 0) {
+          // restore a capture overwritten on the way to the instruction just added
+          work[-pc - 1] = stack[--sp];
+          continue;
+        }
+        while (!threads.contains(pc)) {
+          threads.add(pc);
+          switch (ops[pc]) {
+            case JMP:
+              pc = args[pc];
+              continue;
+            case SPLIT:
+              stack[sp++] = regex.args2[pc];
+              pc = args[pc];
+              continue;
+            case SAVE:
+              final int slot = args[pc];
+              if (slot < slots) {
+                stack[sp++] = work[slot];
+                stack[sp++] = -slot - 1;
+                work[slot] = pos;
+              }
+              pc++;
+              continue;
+            case ASSERT:
+              if (assertion(args[pc], pos)) {
+                pc++;
+                continue;
+              }
+              break;
+            default:
+              System.arraycopy(work, 0, threads.captures, pc * slots, slots);
+          }
+          break;
+        }
+      }
+    }
+
+    private boolean assertion(int kind, int i) {
+      final String s = input;
+      final int end = length;
+      switch (kind) {
+        case BEGIN:
+          return i == 0;
+        case END:
+          return i == end;
+        case CARET:
+          if (i == end) {
+            return false;
+          }
+          if (i > 0) {
+            final char c = s.charAt(i - 1);
+            if (c != '\n' && c != '\r' && (c | 1) != '\u2029' && c != '\u0085') {
+              return false;
+            }
+            // \r\n is a single line terminator
+            return !(c == '\r' && s.charAt(i) == '\n');
+          }
+          return true;
+        case UNIX_CARET:
+          return i < end && (i == 0 || s.charAt(i - 1) == '\n');
+        case DOLLAR:
+        case DOLLAR_MULTILINE:
+          if (kind == DOLLAR) {
+            // only before a final line terminator
+            if (i < end - 2 || (i == end - 2 && !(s.charAt(i) == '\r' && s.charAt(i + 1) == '\n'))) {
+              return false;
+            }
+          }
+          if (i < end) {
+            final char c = s.charAt(i);
+            if (c == '\n') {
+              return !(i > 0 && s.charAt(i - 1) == '\r');
+            }
+            return c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+          }
+          return true;
+        case UNIX_DOLLAR:
+        case UNIX_DOLLAR_MULTILINE:
+          if (i < end) {
+            return s.charAt(i) == '\n' && (kind == UNIX_DOLLAR_MULTILINE || i == end - 1);
+          }
+          return true;
+        case WORD_BOUNDARY:
+          return isWordBefore(i) != isWordAt(i);
+        case NOT_WORD_BOUNDARY:
+          return isWordBefore(i) == isWordAt(i);
+        default:
+          throw new IllegalStateException();
+      }
+    }
+
+    private boolean isWordBefore(int i) {
+      if (i <= 0) {
+        return false;
+      }
+      final int c = Character.codePointBefore(input, i);
+      return isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && hasBaseCharacter(i - 1));
+    }
+
+    private boolean isWordAt(int i) {
+      if (i >= length) {
+        return false;
+      }
+      final int c = input.codePointAt(i);
+      return isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && hasBaseCharacter(i));
+    }
+
+    private static boolean isWord(int c) {
+      return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * @return whether the non-spacing marks ending at i follow a letter or digit
+     */
+    private boolean hasBaseCharacter(int i) {
+      for (int k = i; k >= 0; k--) {
+        final int c = input.codePointAt(k);
+        if (Character.isLetterOrDigit(c)) {
+          return true;
+        } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+          return false;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Replacement string, split into literal text and references to groups
+   * as in java.util.regex.Matcher#appendReplacement
+   */
+  private static final class Replacement {
+    private final List<String> texts = new ArrayList<String>();
+    private final List<Integer> groups = new ArrayList<Integer>(); // -1 for a text
+
+    Replacement(String replacement, LinearRegex regex) {
+      final StringBuilder text = new StringBuilder();
+      final int length = replacement.length();
+      for (int k = 0; k < length; ) {
+        char c = replacement.charAt(k++);
+        if (c == '\\') {
+          if (k == length) {
+            throw new IllegalArgumentException("character to be escaped is missing");
+          }
+          text.append(replacement.charAt(k++));
+        } else if (c != '$') {
+          text.append(c);
+        } else {
+          if (k == length) {
+            throw new IllegalArgumentException("Illegal group reference: group index is missing");
+          }
+          c = replacement.charAt(k);
+          int group;
+          if (c == '{') {
+            final int start = ++k;
+            while (k < length && (isAsciiLetter(replacement.charAt(k)) || isAsciiDigit(replacement.charAt(k)))) {
+              k++;
+            }
+            final String name = replacement.substring(start, k);
+            if (name.isEmpty()) {
+              throw new IllegalArgumentException("named capturing group has 0 length name");
+            }
+            if (k == length || replacement.charAt(k) != '}') {
+              throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+            }
+            if (isAsciiDigit(name.charAt(0))) {
+              throw new IllegalArgumentException("capturing group name {" + name + "} starts with digit character");
+            }
+            final Integer named = regex.groupNames.get(name);
+            if (named == null) {
+              throw new IllegalArgumentException("No group with name {" + name + "}");
+            }
+            group = named;
+            k++;
+          } else {
+            if (!isAsciiDigit(c)) {
+              throw new IllegalArgumentException("Illegal group reference");
+            }
+            group = c - '0';
+            k++;
+            // take as many digits as make a valid group number
+            while (k < length && isAsciiDigit(replacement.charAt(k))
+                && 10 * group + (replacement.charAt(k) - '0') <= regex.groupCount) {
+              group = 10 * group + (replacement.charAt(k++) - '0');
+            }
+            if (group > regex.groupCount) {
+              throw new IndexOutOfBoundsException("No group " + group);
+            }
+          }
+          if (text.length() > 0) {
+            add(text.toString(), -1);
+            text.setLength(0);
+          }
+          add(null, group);
+        }
+      }
+      if (text.length() > 0) {
+        add(text.toString(), -1);
+      }
+    }
+
+    private void add(String text, int group) {
+      texts.add(text);
+      groups.add(group);
+    }
+
+    void appendTo(StringBuilder result, RegexMatcher matcher, String input) {
+      for (int k = 0, n = groups.size(); k < n; k++) {
+        final int group = groups.get(k);
+        if (group < 0) {
+          result.append(texts.get(k));
+        } else {
+          final int start = matcher.start(group);
+          if (start >= 0) {
+            result.append(input, start, matcher.end(group));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Thrown by the parser on anything left to java.util.regex
+   */
+  private static final class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+}
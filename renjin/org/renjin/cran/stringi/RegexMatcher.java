@@ -0,0 +1,76 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.eval.EvalException;
+
+/**
+ * Matcher of a RegexPattern against an input sequence, with the semantics of
+ * java.util.regex.Matcher for the few operations the natives need
+ *
+ * Matchers are not thread-safe; ElementLoop workers each keep their own.
+ */
+abstract class RegexMatcher {
+
+  /**
+   * Threads stepped over between two looks at the clock in time-limited linear-time matches
+   */
+  static final int CLOCK_INTERVAL = 1 << 10;
+
+  /**
+   * Forget the current match and start matching the given input from its beginning
+   */
+  abstract RegexMatcher reset(CharSequence input);
+
+  /**
+   * Find the next match, starting after the previous one (or one char further if that was empty)
+   */
+  abstract boolean find();
+
+  /**
+   * Whether the input contains a match at all; the match itself is not available afterwards
+   */
+  boolean found() {
+    return find();
+  }
+
+  int start() {
+    return start(0);
+  }
+
+  int end() {
+    return end(0);
+  }
+
+  /**
+   * @return start of the given group in the current match, or -1 if the group did not take part in it
+   */
+  abstract int start(int group);
+
+  /**
+   * @return end of the given group in the current match, or -1 if the group did not take part in it
+   */
+  abstract int end(int group);
+
+  abstract int groupCount();
+
+  /**
+   * Replace every match with the replacement, in which $n, ${name} and \ have
+   * the meaning given in java.util.regex.Matcher#appendReplacement
+   */
+  abstract String replaceAll(String replacement);
+
+  abstract String replaceFirst(String replacement);
+
+  /**
+   * @return the error of a match operation which took longer than the time limit, as reported by ICU
+   */
+  static EvalException timeOut() {
+    return new EvalException("Maximum allowed match time exceeded. (U_REGEX_TIME_OUT)");
+  }
+
+  /**
+   * @return the error of a match operation which backtracked too deep, as reported by ICU
+   */
+  static EvalException stackOverflow() {
+    return new EvalException("Regular expression backtrack stack overflow. (U_REGEX_STACK_OVERFLOW)");
+  }
+}
@@ -0,0 +1,400 @@
+package org.renjin.cran.stringi;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled regular expression, safe to share between threads
+ *
+ * Patterns are compiled by java.util.regex, or, if LINEAR_TIME is among
+ * the flags, by LinearRegex wherever it supports the pattern. Both engines
+ * give the same matches; LinearRegex takes time linear in the length of the
+ * input whatever the pattern, while java.util.regex backtracks and may take
+ * exponential time on some patterns.
+ */
+abstract class RegexPattern {
+
+  /**
+   * Flag (in addition to those of java.util.regex.Pattern) selecting the linear-time engine
+   */
+  static final int LINEAR_TIME = 1 << 16;
+
+  /**
+   * @param pattern
+   *          pattern in java.util.regex syntax
+   * @param flags
+   *          java.util.regex.Pattern flags, optionally with LINEAR_TIME
+   * @throws java.util.regex.PatternSyntaxException
+   *           if the pattern is invalid
+   */
+  static RegexPattern compile(String pattern, int flags) {
+    if ((flags & LINEAR_TIME) != 0) {
+      final LinearRegex linear = LinearRegex.compile(pattern, flags & ~LINEAR_TIME);
+      if (linear != null) {
+        return linear;
+      }
+    }
+    return new Backtracking(Pattern.compile(pattern, flags & ~LINEAR_TIME));
+  }
+
+  /**
+   * @return a matcher of this pattern; matchers are not thread-safe
+   */
+  RegexMatcher matcher(CharSequence input) {
+    return matcher(input, 0);
+  }
+
+  /**
+   * @param timeLimit
+   *          time each match operation may take, in milliseconds, or 0 for no limit; a match
+   *          taking longer fails with an EvalException
+   * @return a matcher of this pattern; matchers are not thread-safe
+   */
+  abstract RegexMatcher matcher(CharSequence input, int timeLimit);
+
+  /**
+   * java.util.regex, which supports everything but may backtrack
+   */
+  private static final class Backtracking extends RegexPattern {
+    private final Pattern pattern;
+
+    Backtracking(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    RegexMatcher matcher(CharSequence input, int timeLimit) {
+      return new BacktrackingMatcher(pattern.matcher(""), timeLimit).reset(input);
+    }
+  }
+
+  /**
+   * Backtracking goes as deep in the Java stack as the input is long for some patterns;
+   * running out of stack is reported as an error of the match rather than of the JVM.
+   */
+  private static final class BacktrackingMatcher extends RegexMatcher {
+    private final Matcher matcher;
+    private final TimedSequence timed; // null if there is no time limit
+
+    BacktrackingMatcher(Matcher matcher, int timeLimit) {
+      this.matcher = matcher;
+      this.timed = timeLimit > 0 ? new TimedSequence(timeLimit) : null;
+    }
+
+    @Override
+    RegexMatcher reset(CharSequence input) {
+      if (timed == null) {
+        matcher.reset(input);
+      } else {
+        timed.input = input.toString();
+        matcher.reset(timed);
+      }
+      return this;
+    }
+
+    @Override
+    boolean find() {
+      if (timed == null) {
+        try {
+          return matcher.find();
+        } catch (StackOverflowError e) {
+          throw stackOverflow();
+        }
+      }
+      timed.start();
+      try {
+        return matcher.find();
+      } catch (StackOverflowError e) {
+        throw stackOverflow();
+      } finally {
+        timed.stop();
+      }
+    }
+
+    @Override
+    int start(int group) {
+      return matcher.start(group);
+    }
+
+    @Override
+    int end(int group) {
+      return matcher.end(group);
+    }
+
+    @Override
+    int groupCount() {
+      return matcher.groupCount();
+    }
+
+    @Override
+    String replaceAll(String replacement) {
+      if (timed == null) {
+        try {
+          return matcher.replaceAll(replacement);
+        } catch (StackOverflowError e) {
+          throw stackOverflow();
+        }
+      }
+      // each match gets the time limit, as in replaceFirst()
+      matcher.reset();
+      if (!find()) {
+        return timed.input;
+      }
+      final String input = timed.input;
+      final StringBuilder result = new StringBuilder(input.length());
+      int last = 0;
+      do {
+        result.append(input, last, matcher.start());
+        appendReplacement(result, input, replacement);
+        last = matcher.end();
+      } while (find());
+      return result.append(input, last, input.length()).toString();
+    }
+
+    @Override
+    String replaceFirst(String replacement) {
+      if (timed == null) {
+        try {
+          return matcher.replaceFirst(replacement);
+        } catch (StackOverflowError e) {
+          throw stackOverflow();
+        }
+      }
+      matcher.reset();
+      if (!find()) {
+        return timed.input;
+      }
+      final String input = timed.input;
+      final StringBuilder result = new StringBuilder(input.length());
+      result.append(input, 0, matcher.start());
+      appendReplacement(result, input, replacement);
+      return result.append(input, matcher.end(), input.length()).toString();
+    }
+
+    /**
+     * Appends the replacement of the current match as Matcher.appendReplacement() would,
+     * but copying groups from the input itself rather than through the timed sequence,
+     * whose chars may only be read during a match
+     */
+    private void appendReplacement(StringBuilder result, String input, String replacement) {
+      final int length = replacement.length();
+      int i = 0;
+      while (i < length) {
+        char c = replacement.charAt(i++);
+        if (c == '\\') {
+          if (i == length) {
+            throw new IllegalArgumentException("character to be escaped is missing");
+          }
+          result.append(replacement.charAt(i++));
+        } else if (c != '$') {
+          result.append(c);
+        } else if (i == length) {
+          throw new IllegalArgumentException("Illegal group reference: group index is missing");
+        } else if (replacement.charAt(i) == '{') {
+          final int close = replacement.indexOf('}', ++i);
+          if (close < 0) {
+            throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+          }
+          final String group = matcher.group(replacement.substring(i, close));
+          if (group != null) {
+            result.append(group);
+          }
+          i = close + 1;
+        } else {
+          int group = replacement.charAt(i++) - '0';
+          if (group < 0 || group > 9) {
+            throw new IllegalArgumentException("Illegal group reference");
+          }
+          // as many digits as still name a group
+          while (i < length) {
+            final int digit = replacement.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || group * 10 + digit > matcher.groupCount()) {
+              break;
+            }
+            group = group * 10 + digit;
+            i++;
+          }
+          if (group > matcher.groupCount()) {
+            throw new IndexOutOfBoundsException("No group " + group);
+          }
+          if (matcher.start(group) >= 0) {
+            result.append(input, matcher.start(group), matcher.end(group));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Input of a time-limited match, which fails the match once the watchdog finds it late
+   *
+   * The deadline is set when each match starts, on the coarse clock of the watchdog
+   * so as not to read the system clock per match; reading a char costs one look at
+   * the state, which the watchdog negates once the match is late. Between matches
+   * the sequence is disarmed, and the watchdog stops looking at it.
+   */
+  private static final class TimedSequence implements CharSequence {
+    private static final AtomicIntegerFieldUpdater<TimedSequence> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(TimedSequence.class, "state");
+    private static final AtomicIntegerFieldUpdater<TimedSequence> WATCHED =
+        AtomicIntegerFieldUpdater.newUpdater(TimedSequence.class, "watched");
+
+    private final int timeLimit; // in milliseconds
+    private String input;
+    private int deadline; // in watchdog ticks
+    private int matches; // number of matches started
+    private volatile int state; // 0 between matches, else matches, negated by the watchdog if that match is late
+    private volatile int watched; // 1 while the watchdog looks at this sequence
+
+    TimedSequence(int timeLimit) {
+      this.timeLimit = timeLimit;
+    }
+
+    void start() {
+      if (watched == 0 && WATCHED.compareAndSet(this, 0, 1)) {
+        Watchdog.watch(this); // brings the clock up to date if the watchdog was idle
+      }
+      // one tick more, as the clock may be about to tick
+      deadline = Watchdog.ticks + timeLimit + 1;
+      if (++matches < 0) {
+        matches = 1;
+      }
+      // a volatile write publishes the deadline along, and orders the look below after it
+      state = matches;
+      if (watched == 0 && WATCHED.compareAndSet(this, 0, 1)) {
+        // the watchdog dropped this sequence just before the match started
+        Watchdog.watch(this);
+      }
+    }
+
+    void stop() {
+      STATE.lazySet(this, 0);
+    }
+
+    /**
+     * Called by the watchdog
+     *
+     * @return false if the sequence is between matches, and the watchdog may stop looking at it
+     */
+    boolean check(int now) {
+      final int started = state;
+      if (started > 0 && now - deadline > 0) {
+        // fails if a later match has started since; if the deadline read is that
+        // of a later match, flagging an earlier one does no harm
+        STATE.compareAndSet(this, started, -started);
+      }
+      if (started != 0) {
+        return true;
+      }
+      watched = 0;
+      if (state == 0) {
+        // a match starting from now on sees watched at 0, and registers again
+        return false;
+      }
+      // a match started meanwhile, and may not have seen watched at 0
+      watched = 1;
+      return true;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if (state < 0) {
+        throw RegexMatcher.timeOut();
+      }
+      return input.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return input.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return input.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return input;
+    }
+  }
+
+  /**
+   * Daemon thread keeping a millisecond clock and looking every tick at the deadlines
+   * of the time-limited matches in progress
+   *
+   * Sequences are watched from the start of a match until the watchdog finds them
+   * between matches; with none left, the thread waits without ticking until the
+   * next one is watched.
+   */
+  private static final class Watchdog implements Runnable {
+    private static final long INTERVAL = 1; // in milliseconds
+    private static final long EPOCH = System.nanoTime();
+
+    /**
+     * Milliseconds since EPOCH, as of the last tick
+     */
+    static volatile int ticks;
+
+    private static final Set<TimedSequence> watched = new HashSet<TimedSequence>();
+    private static boolean running;
+
+    static synchronized void watch(TimedSequence sequence) {
+      if (watched.isEmpty()) {
+        // the clock has not ticked while idle
+        ticks = now();
+        if (running) {
+          Watchdog.class.notify();
+        }
+      }
+      watched.add(sequence);
+      if (!running) {
+        running = true;
+        final Thread thread = new Thread(new Watchdog(), "stringi-regex-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    private static int now() {
+      return (int) ((System.nanoTime() - EPOCH) / 1000000L);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          synchronized (Watchdog.class) {
+            while (watched.isEmpty()) {
+              Watchdog.class.wait();
+            }
+            final int now = now();
+            ticks = now;
+            final Iterator<TimedSequence> it = watched.iterator();
+            while (it.hasNext()) {
+              if (!it.next().check(now)) {
+                it.remove();
+              }
+            }
+          }
+          Thread.sleep(INTERVAL);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        synchronized (Watchdog.class) {
+          // the next match to start registers again, and starts a new watchdog
+          for (TimedSequence sequence : watched) {
+            sequence.watched = 0;
+          }
+          watched.clear();
+          running = false;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.renjin.cran.stringi;
+
+import java.util.Arrays;
+
+import org.renjin.sexp.AttributeMap;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+
+/**
+ * Fields of a split string, kept as offsets into it
+ *
+ * A field is copied out of the source string only when it is accessed, so
+ * the result of a split costs two ints per field on top of the string it
+ * came from.
+ */
+final class SplitVector extends StringVector {
+
+  private final String source;
+  private final int[] bounds; // start and end of each field; start is -1 for NA
+
+  private SplitVector(String source, int[] bounds, AttributeMap attributes) {
+    super(attributes);
+    this.source = source;
+    this.bounds = bounds;
+  }
+
+  @Override
+  public String getElementAsString(int i) {
+    final int start = bounds[2 * i];
+    return start < 0 ? NA : source.substring(start, bounds[2 * i + 1]);
+  }
+
+  @Override
+  public boolean isElementNA(int i) {
+    return bounds[2 * i] < 0;
+  }
+
+  @Override
+  public int length() {
+    return bounds.length / 2;
+  }
+
+  @Override
+  public boolean isConstantAccessTime() {
+    return true;
+  }
+
+  @Override
+  protected SEXP cloneWithNewAttributes(AttributeMap attributes) {
+    return new SplitVector(source, bounds, attributes);
+  }
+
+  static final class Builder {
+    private int[] bounds = new int[16];
+    private int size;
+
+    /**
+     * Add source[start, end) as the next field
+     *
+     * @param emptyAsNA
+     *          add an empty field as NA
+     */
+    void add(int start, int end, boolean emptyAsNA) {
+      if (2 * size + 2 > bounds.length) {
+        bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+      }
+      final boolean isNA = emptyAsNA && start == end;
+      bounds[2 * size] = isNA ? -1 : start;
+      bounds[2 * size + 1] = isNA ? -1 : end;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void removeLast() {
+      size--;
+    }
+
+    StringVector build(String source) {
+      return new SplitVector(source, Arrays.copyOf(bounds, 2 * size), AttributeMap.EMPTY);
+    }
+  }
+}
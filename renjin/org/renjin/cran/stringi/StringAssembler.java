@@ -0,0 +1,51 @@
+package org.renjin.cran.stringi;
+
+import org.renjin.eval.EvalException;
+
+/**
+ * Buffer for strings whose exact length is known before they are assembled
+ *
+ * Callers sum the lengths of the pieces first (as a long, so that the sum
+ * cannot wrap around), reset the assembler to that length and then append
+ * the pieces, which are copied straight into a single char[]. The buffer is
+ * kept between resets, so assembling many rows allocates it only once per
+ * row length high-water mark.
+ */
+final class StringAssembler {
+
+  /** largest array most JVMs will allocate */
+  static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+  private char[] buffer = new char[0];
+  private int size;
+
+  /**
+   * Prepare for assembling a new string of the given length
+   *
+   * @throws EvalException
+   *           if the length is more than a string can hold
+   */
+  StringAssembler reset(long length) {
+    if (length > MAX_LENGTH) {
+      throw new EvalException("result string would be " + length + " characters long, which exceeds the limit of "
+          + MAX_LENGTH);
+    }
+    if (buffer.length < length) {
+      buffer = new char[(int) length];
+    }
+    size = 0;
+    return this;
+  }
+
+  StringAssembler append(String s) {
+    final int length = s.length();
+    s.getChars(0, length, buffer, size);
+    size += length;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, size);
+  }
+}
@@ -0,0 +1,105 @@
+package org.renjin.cran.stringi;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.renjin.eval.EvalException;
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheBuilder;
+import org.renjin.sexp.StringArrayVector;
+import org.renjin.sexp.StringVector;
+
+import com.ibm.icu.text.ReplaceableString;
+import com.ibm.icu.text.Transliterator;
+
+/**
+ * General transform of a transliterator id, as done by stri_trans_general
+ *
+ * Building a Transliterator from its id (e.g. "Any-Latin; Latin-ASCII; Lower")
+ * takes milliseconds, so transliterations are cached by id. Transliterators
+ * are not thread-safe: each thread gets an instance of its own, the one that
+ * built the transliteration the cached instance and any other one an instance
+ * built on first use. Each Worker transliterates its strings in one buffer,
+ * and returns a string as it is if the transform leaves it unchanged.
+ */
+final class Transliteration {
+
+  private static final int CACHE_SIZE = 32;
+
+  static final Cache<String, Transliteration> CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private static StringVector availableIds;
+
+  private final ThreadLocal<Transliterator> instances;
+
+  private Transliteration(final String id, Transliterator transliterator) {
+    this.instances = new ThreadLocal<Transliterator>() {
+      @Override
+      protected Transliterator initialValue() {
+        return Transliterator.getInstance(id);
+      }
+    };
+    this.instances.set(transliterator);
+  }
+
+  static Transliteration of(String id) {
+    Transliteration transliteration = CACHE.getIfPresent(id);
+    if (transliteration == null) {
+      final Transliterator transliterator;
+      try {
+        transliterator = Transliterator.getInstance(id);
+      } catch (IllegalArgumentException e) { // unknown id or syntax error in it
+        throw new EvalException("transliterator `" + id + "` is not supported (U_INVALID_ID)");
+      }
+      transliteration = new Transliteration(id, transliterator);
+      CACHE.put(id, transliteration);
+    }
+    return transliteration;
+  }
+
+  /**
+   * @return ids of the available transliterators, listed once and then shared by all callers
+   */
+  static synchronized StringVector availableIds() {
+    if (availableIds == null) {
+      final List<String> ids = new ArrayList<String>();
+      final Enumeration<String> available = Transliterator.getAvailableIDs();
+      while (available.hasMoreElements()) {
+        ids.add(available.nextElement());
+      }
+      availableIds = new StringArrayVector(ids);
+    }
+    return availableIds;
+  }
+
+  /**
+   * @return a worker for the calling thread; workers are not thread-safe
+   */
+  Worker worker() {
+    return new Worker(instances.get());
+  }
+
+  static final class Worker {
+    private final Transliterator transliterator;
+    private final StringBuffer buffer = new StringBuffer();
+    private final ReplaceableString text = new ReplaceableString(buffer);
+
+    private Worker(Transliterator transliterator) {
+      this.transliterator = transliterator;
+    }
+
+    String transliterate(String s) {
+      buffer.setLength(0);
+      buffer.append(s);
+      transliterator.transliterate(text);
+      if (buffer.length() == s.length() && s.contentEquals(buffer)) {
+        return s;
+      }
+      return buffer.toString();
+    }
+  }
+}
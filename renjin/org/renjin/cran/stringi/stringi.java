@@ -1,15 +1,27 @@
 package org.renjin.cran.stringi;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.text.Normalizer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.renjin.eval.EvalException;
@@ -21,8 +33,12 @@ import org.renjin.primitives.sequence.RepIntVector;
 import org.renjin.primitives.sequence.RepLogicalVector;
 import org.renjin.primitives.sequence.RepStringVector;
 import org.renjin.repackaged.guava.base.Utf8;
+import org.renjin.repackaged.guava.cache.Cache;
+import org.renjin.repackaged.guava.cache.CacheBuilder;
 import org.renjin.sexp.AtomicVector;
+import org.renjin.sexp.DoubleArrayVector;
 import org.renjin.sexp.DoubleVector;
+import org.renjin.sexp.ExternalPtr;
 import org.renjin.sexp.IntArrayVector;
 import org.renjin.sexp.IntVector;
 import org.renjin.sexp.ListVector;
@@ -30,34 +46,132 @@ import org.renjin.sexp.Logical;
 import org.renjin.sexp.LogicalArrayVector;
 import org.renjin.sexp.LogicalVector;
 import org.renjin.sexp.Null;
+import org.renjin.sexp.RawArrayVector;
+import org.renjin.sexp.RawVector;
 import org.renjin.sexp.SEXP;
 import org.renjin.sexp.StringArrayVector;
 import org.renjin.sexp.StringVector;
 import org.renjin.sexp.Symbols;
 
 import com.ibm.icu.lang.UCharacter;
-import com.ibm.icu.lang.UCharacter.EastAsianWidth;
-import com.ibm.icu.lang.UCharacter.HangulSyllableType;
-import com.ibm.icu.lang.UProperty;
 import com.ibm.icu.text.BreakIterator;
+import com.ibm.icu.text.CharsetMatch;
+import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.Normalizer2;
+import com.ibm.icu.text.RawCollationKey;
 import com.ibm.icu.text.RuleBasedBreakIterator;
+import com.ibm.icu.text.RuleBasedCollator;
 import com.ibm.icu.text.UnicodeSet;
 import com.ibm.icu.text.UnicodeSetSpanner;
 import com.ibm.icu.text.UnicodeSetSpanner.TrimOption;
+import com.ibm.icu.util.ULocale;
+import com.ibm.icu.util.VersionInfo;
 
 /**
  * Substitute implementations for C functions
  */
 public class stringi {
 
+  private static final int REGEX_CACHE_SIZE = 256;
+
+  /**
+   * Compiled regular expressions shared by all regex natives, keyed by (pattern, flags)
+   */
+  private static final Cache<PatternKey, RegexPattern> REGEX_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(REGEX_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private static final int BRKITER_CACHE_SIZE = 64;
+
+  /**
+   * Prototype break iterators keyed by (type, locale) or by rule string;
+   * callers clone them, typically once per ElementLoop worker
+   */
+  private static final Cache<BreakIteratorKey, BreakIterator> BRKITER_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(BRKITER_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private static final int CHARCLASS_CACHE_SIZE = 256;
+
+  /**
+   * Frozen (hence thread-safe) character classes shared by all charclass natives, keyed by pattern
+   */
+  private static final Cache<String, UnicodeSet> CHARCLASS_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CHARCLASS_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private static final int COLLATOR_CACHE_SIZE = 64;
+
+  /**
+   * Frozen (hence thread-safe) collators shared by all natives taking opts_collator,
+   * keyed by the default locale and the settings they were opened with
+   */
+  private static final Cache<String, Collator> COLLATOR_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(COLLATOR_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  private static final int CHARSET_CACHE_SIZE = 64;
+
+  /**
+   * Charsets by the names they were asked for by, as Charset.forName() remembers only the last two
+   */
+  private static final Cache<String, Charset> CHARSET_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CHARSET_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  /**
+   * Results of stri_enc_info, which decodes and encodes every byte of 8-bit charsets
+   */
+  private static final Cache<Charset, SEXP> CHARSET_INFO_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(CHARSET_CACHE_SIZE)
+      .recordStats()
+      .build();
+
+  /**
+   * Result of stri_enc_list, built on first use
+   */
+  private static SEXP charsetList;
+
+  /**
+   * Minimal number of patterns for which a single string is searched with an Aho-Corasick automaton
+   */
+  private static final int MULTI_PATTERN_THRESHOLD = 16;
+
+  /**
+   * Bytes encoded by stri_write_lines before they are written out
+   */
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+  private static final Pattern LINE_SPLITTER = Pattern.compile("(?:\\r\\n)|(?!\\r\\n)[\\u000a-\\u000d\\u0085\\u2028\\u2029]");
+
   public static void R_init_stringi(DllInfo dll) {
 
+    Instrumentation.registerCache("regex", REGEX_CACHE);
+    Instrumentation.registerCache("regex_class", LinearRegex.CLASS_CACHE);
+    Instrumentation.registerCache("break_iterator", BRKITER_CACHE);
+    Instrumentation.registerCache("charclass", CHARCLASS_CACHE);
+    Instrumentation.registerCache("collator", COLLATOR_CACHE);
+    Instrumentation.registerCache("case_mapping", CaseMapping.CACHE);
+    Instrumentation.registerCache("transliterator", Transliteration.CACHE);
+    Instrumentation.registerCache("charset", CHARSET_CACHE);
+    Instrumentation.registerCache("charset_info", CHARSET_INFO_CACHE);
+    Instrumentation.registerCache("char_range", CharRange.CACHE);
+    final boolean is_instrumented = Instrumentation.isEnabled();
+
     // Register all methods in this class
     for (Method method : stringi.class.getMethods()) {
       if(method.getName().startsWith("stri_")) {
         try {
           final String methodName = "C_" + method.getName();
-          final MethodHandle methodHandle = MethodHandles.publicLookup().unreflect(method);
+          MethodHandle methodHandle = MethodHandles.publicLookup().unreflect(method);
+          if (is_instrumented) {
+            methodHandle = Instrumentation.instrument(method.getName(), methodHandle);
+          }
           final DllSymbol symbol = new DllSymbol(methodName, methodHandle, DllSymbol.Convention.CALL);
           dll.register(symbol);
         } catch (IllegalAccessException e) {
@@ -79,30 +193,99 @@ public class stringi {
   public static SEXP stri_cmp_nequiv(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_count_boundaries(SEXP str, SEXP opts_brkiter) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
-    final BreakIterator brkiter = __open_break_iterator(opts_brkiter, "line_break");
+    final BreakIterator prototype = __open_break_iterator(opts_brkiter, "line_break");
     final int length = str.length();
     final int[] result = new int[length];
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = IntVector.NA;
-      } else {
-        brkiter.setText(strings.getElementAsString(i));
-        brkiter.first();
-        int count = 0;
-        while (BreakIterator.DONE < brkiter.next()) {
-          // FIXME handle skip_* rules
-          count++;
+    new ElementLoop<BreakIterator>(length) {
+      @Override
+      protected BreakIterator createState() {
+        return (BreakIterator) prototype.clone();
+      }
+      @Override
+      protected void compute(int i, BreakIterator brkiter) {
+        if (strings.isElementNA(i)) {
+          result[i] = IntVector.NA;
+        } else {
+          brkiter.setText(strings.getElementAsString(i));
+          brkiter.first();
+          int count = 0;
+          while (BreakIterator.DONE < brkiter.next()) {
+            // FIXME handle skip_* rules
+            count++;
+          }
+          result[i] = count;
         }
-        result[i] = count;
       }
-    }
+    }.run();
 
     return new IntArrayVector(result);
   }
   public static SEXP stri_count_charclass(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_count_fixed(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_count_coll(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
+  public static SEXP stri_count_fixed(SEXP str, SEXP pattern, SEXP opts_fixed) {
+    final int flags = __fixed_flags(opts_fixed, true);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final boolean is_overlapping = (flags & FixedSearch.OVERLAP) > 0;
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final int[] result = new int[length];
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = IntVector.NA;
+        } else {
+          final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+          result[i] = searcher.count(strings.getElementAsString(i), is_overlapping);
+        }
+      }
+    }.run();
+
+    return new IntArrayVector(result);
+  }
+  public static SEXP stri_count_coll(SEXP str, SEXP pattern, SEXP opts_collator) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final int[] result = new int[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = IntVector.NA;
+        } else {
+          search.reset(patterns.getElementAsString(i), strings.getElementAsString(i));
+          int count = 0;
+          for (int start = search.first(); start != CollSearch.DONE; start = search.next()) {
+            count++;
+          }
+          result[i] = count;
+        }
+      }
+    }.run();
+
+    return new IntArrayVector(result);
+  }
   public static SEXP stri_count_regex(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_datetime_symbols(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_datetime_fields(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
@@ -118,54 +301,105 @@ public class stringi {
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
 
-    String lastPattern = null;
-    UnicodeSet matcher = null;
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i)) {
-        result[i] = Logical.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        final String appliedPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-        if (!appliedPattern.equals(lastPattern)) {
-          lastPattern = appliedPattern;
-          matcher = new UnicodeSet(appliedPattern);
+    new ElementLoop<LastPattern<UnicodeSet>>(length) {
+      @Override
+      protected LastPattern<UnicodeSet> createState() {
+        return new LastPattern<UnicodeSet>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<UnicodeSet> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i)) {
+          result[i] = Logical.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final UnicodeSet charclass = __charclass(last, patterns.getElementAsString(i));
+          final boolean found = charclass.span(element, UnicodeSet.SpanCondition.NOT_CONTAINED) < element.length();
+          result[i] = Logical.valueOf(is_negating ? !found : found);
         }
-        final boolean found = -1 < matcher.span(element, UnicodeSet.SpanCondition.NOT_CONTAINED);
-        result[i] = Logical.valueOf(is_negating ? !found : found);
       }
-    }
+    }.run();
+
+    return new LogicalArrayVector(result);
+  }
+  public static SEXP stri_detect_coll(SEXP str, SEXP pattern, SEXP negate, SEXP opts_collator) {
+    final boolean is_negating = ((AtomicVector) negate).getElementAsLogical(0).toBooleanStrict();
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final Logical[] result = new Logical[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = Logical.NA;
+        } else {
+          final boolean found = search.reset(patterns.getElementAsString(i), strings.getElementAsString(i)).first() != CollSearch.DONE;
+          result[i] = Logical.valueOf(is_negating ? !found : found);
+        }
+      }
+    }.run();
 
     return new LogicalArrayVector(result);
   }
-  public static SEXP stri_detect_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_detect_fixed(SEXP str, SEXP pattern, SEXP negate, SEXP opts_fixed) {
     final boolean is_negating = ((AtomicVector) negate).getElementAsLogical(0).toBooleanStrict();
     final int flags = __fixed_flags(opts_fixed, false);
     final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
     final int length = __recycling_rule(true, str, pattern);
     final Logical[] result = new Logical[length];
-    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
-        if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
-          Native.currentContext().warn("empty search patterns are not supported");
-        }
-        result[i] = Logical.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        if (element.length() <= 0) {
-          result[i] = Logical.valueOf(is_negating);
+    // many patterns against a single string: scan the string once for all of them
+    final boolean[] found_all;
+    if (str.length() == 1 && length >= MULTI_PATTERN_THRESHOLD && !strings.isElementNA(0)) {
+      final String[] searchPatterns = new String[length];
+      for (int i = 0; i < length; i++) {
+        searchPatterns[i] = patterns.getElementAsString(i);
+      }
+      found_all = new boolean[length];
+      new AhoCorasick(searchPatterns, is_insensitive).matchAll(strings.getElementAsString(0), found_all);
+    } else {
+      found_all = null;
+    }
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = Logical.NA;
+        } else if (found_all != null) {
+          result[i] = Logical.valueOf(is_negating ? !found_all[i] : found_all[i]);
         } else {
-          final String separatorPattern = patterns.getElementAsString(i);
-          final String patternNormalized = is_insensitive ? separatorPattern.toUpperCase() : separatorPattern;
-          final String elementNormalized = is_insensitive ? element.toUpperCase() : element;
-          final boolean found = -1 < elementNormalized.indexOf(patternNormalized);
-          result[i] = Logical.valueOf(is_negating ? !found : found);
+          final String element = strings.getElementAsString(i);
+          if (element.length() <= 0) {
+            result[i] = Logical.valueOf(is_negating);
+          } else {
+            final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+            final boolean found = -1 < searcher.indexOf(element, 0);
+            result[i] = Logical.valueOf(is_negating ? !found : found);
+          }
         }
       }
-    }
+    }.run();
 
     return new LogicalArrayVector(result);
   }
@@ -175,25 +409,38 @@ public class stringi {
     }
     final boolean is_negating = ((AtomicVector) negate).getElementAsLogical(0).toBooleanStrict();
     final int flags = __regex_flags(opts_regex);
+    final int timeLimit = __regex_time_limit(opts_regex);
     final int length = __recycling_rule(true, str, pattern);
     final Logical[] result = new Logical[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
-        if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
-          Native.currentContext().warn("empty search patterns are not supported");
+    new ElementLoop<LastPattern<RegexMatcher>>(length) {
+      @Override
+      protected LastPattern<RegexMatcher> createState() {
+        return new LastPattern<RegexMatcher>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<RegexMatcher> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = Logical.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final String searchPattern = patterns.getElementAsString(i);
+          if (!searchPattern.equals(last.pattern)) {
+            last.pattern = searchPattern;
+            last.matcher = __compile_regex(searchPattern, flags).matcher(element, timeLimit);
+          } else {
+            last.matcher.reset(element);
+          }
+          final boolean found = last.matcher.found();
+          result[i] = Logical.valueOf(is_negating ? !found : found);
         }
-        result[i] = Logical.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        final String appliedPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-        final Matcher matcher = Pattern.compile(appliedPattern, flags).matcher(element);
-        final boolean found = matcher.find();
-        result[i] = Logical.valueOf(is_negating ? !found : found);
       }
-    }
+    }.run();
 
     return new LogicalArrayVector(result);
   }
@@ -206,7 +453,7 @@ public class stringi {
       return StringVector.EMPTY;
     } else {
       final String[] result = new String[length];
-      final StringBuffer sb = new StringBuffer();
+      final StringAssembler assembler = new StringAssembler();
       for (int i = 0; i < length; i++) {
         int repeat;
         if (strings.isElementNA(i) || repeats.isElementNA(i) || (repeat = repeats.getElementAsInt(i)) < 0) {
@@ -215,28 +462,88 @@ public class stringi {
           result[i] = "";
         } else {
           final String element = strings.getElementAsString(i);
-          sb.setLength(0);
+          assembler.reset((long) element.length() * repeat);
           for (int j = 0; j < repeat; j++) {
-            sb.append(element);
+            assembler.append(element);
           }
-          result[i] = sb.toString();
+          result[i] = assembler.toString();
         }
       }
       return new StringArrayVector(result);
     }
   }
-  public static SEXP stri_duplicated(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_duplicated_any(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_enc_detect(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_enc_detect2(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
+  public static SEXP stri_duplicated(SEXP str, SEXP fromLast, SEXP opts_collator) {
+    final boolean from_last = ((AtomicVector) fromLast).getElementAsLogical(0).toBooleanStrict();
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final int length = strings.length();
+    final IndexSet uniqueset = __string_index_set(strings, __open_collator(opts_collator), true);
+    final Logical[] result = new Logical[length];
+
+    boolean was_na = false;
+    for (int k = 0; k < length; k++) {
+      final int i = from_last ? length - 1 - k : k;
+      if (strings.isElementNA(i)) {
+        result[i] = Logical.valueOf(was_na);
+        was_na = true;
+      } else {
+        result[i] = Logical.valueOf(!uniqueset.add(i));
+      }
+    }
+
+    return new LogicalArrayVector(result);
+  }
+  public static SEXP stri_duplicated_any(SEXP str, SEXP fromLast, SEXP opts_collator) {
+    final boolean from_last = ((AtomicVector) fromLast).getElementAsLogical(0).toBooleanStrict();
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final int length = strings.length();
+    // hash lazily: there is no point in preparing the elements after the first duplicate
+    final IndexSet uniqueset = __string_index_set(strings, __open_collator(opts_collator), false);
+
+    boolean was_na = false;
+    for (int k = 0; k < length; k++) {
+      final int i = from_last ? length - 1 - k : k;
+      if (strings.isElementNA(i)) {
+        if (was_na) {
+          return IntVector.valueOf(i + 1);
+        }
+        was_na = true;
+      } else if (!uniqueset.add(i)) {
+        return IntVector.valueOf(i + 1);
+      }
+    }
+
+    return IntVector.valueOf(0);
+  }
+  public static SEXP stri_enc_detect(SEXP str, SEXP filter_angle_brackets) {
+    return __enc_detect(str, stri_prepare_arg_logical(filter_angle_brackets, "filter_angle_brackets"), null, false);
+  }
+  public static SEXP stri_enc_detect2(SEXP str, SEXP locale) {
+    final boolean is_na = locale instanceof AtomicVector && locale.length() == 1 && ((AtomicVector) locale).isElementNA(0);
+    final ULocale uloc = is_na ? null : __prepare_arg_locale(locale, "locale");
+    return __enc_detect(str, LogicalVector.FALSE, uloc, true);
+  }
   public static SEXP stri_enc_isutf8(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_isutf16le(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_isutf16be(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_isutf32le(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_isutf32be(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_isascii(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_enc_info(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_enc_list(SEXP s1, SEXP s0) { throw new EvalException("TODO"); }
+  public static SEXP stri_enc_info(SEXP enc) {
+    return __charset_info(__prepare_arg_charset(enc, "enc"));
+  }
+  public static synchronized SEXP stri_enc_list() {
+    if (charsetList == null) {
+      final ListVector.NamedBuilder list = new ListVector.NamedBuilder();
+      for (Charset charset : Charset.availableCharsets().values()) {
+        final List<String> names = new ArrayList<String>();
+        names.add(charset.name());
+        names.addAll(charset.aliases());
+        list.add(charset.name(), new StringArrayVector(names));
+      }
+      charsetList = list.build();
+    }
+    return charsetList;
+  }
   public static SEXP stri_enc_mark(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_set(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_enc_fromutf32(SEXP vec) {
@@ -276,30 +583,107 @@ public class stringi {
 
     return new StringArrayVector(result);
   }
-  public static SEXP stri_enc_toascii(SEXP s1) { throw new EvalException("TODO"); }
+  public static SEXP stri_enc_toascii(SEXP str) {
+    return __replace_non_ascii(stri_prepare_arg_string(str, "str"), '\u001a');
+  }
   public static SEXP stri_enc_toutf8(SEXP str, SEXP is_unknown_8bit, SEXP validate) {
     // in Java, the invalid code points would result in an exception at the time of reading the string
     // we cannot replace here invalid code points by \uFFFD or invalid strings by NA
 
     final boolean strict_ascii = ((AtomicVector) is_unknown_8bit).getElementAsLogical(0).toBooleanStrict();
     if (strict_ascii) {
-      final int length = str.length();
-      final String[] result = new String[length];
-
-      for (int i = 0; i < length; i++) {
-        final String element = ((AtomicVector) str).getElementAsString(i);
-        result[i] = element.replaceAll("[^\u0000-\u007F]", "\uFFFD");
-      }
-
-      return new StringArrayVector(result);
+      return __replace_non_ascii(stri_prepare_arg_string(str, "str"), '\uFFFD');
     } else {
       return str;
     }
   }
   public static SEXP stri_enc_toutf32(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_encode(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
+  public static SEXP stri_encode(SEXP str, SEXP from, SEXP to, SEXP to_raw) {
+    // strings are already decoded, so from applies to raw input only
+    final Charset from_charset = __prepare_arg_charset(from, "from");
+    final Charset to_charset = __prepare_arg_charset(to, "to");
+    final LogicalVector raws = stri_prepare_arg_logical(to_raw, "to_raw");
+    final boolean is_raw = raws.length() > 0 && raws.getElementAsLogical(0) == Logical.TRUE;
+
+    final ListVector inputs = __prepare_arg_list_raw(str, "str");
+    final StringVector strings = (inputs == null) ? stri_prepare_arg_string(str, "str") : null;
+    final int length = (inputs != null) ? inputs.length() : strings.length();
+    final String[] result = is_raw ? null : new String[length];
+    final SEXP[] result_raw = is_raw ? new SEXP[length] : null;
+
+    new ElementLoop<CharsetConverter>(length) {
+      @Override
+      protected CharsetConverter createState() {
+        return new CharsetConverter(from_charset, to_charset);
+      }
+      @Override
+      protected void compute(int i, CharsetConverter converter) {
+        if (inputs != null ? Null.INSTANCE.equals(inputs.getElementAsSEXP(i)) : strings.isElementNA(i)) {
+          if (is_raw) {
+            result_raw[i] = Null.INSTANCE;
+          } else {
+            result[i] = StringVector.NA;
+          }
+          return;
+        }
+        if (inputs != null) {
+          final RawVector element = (RawVector) inputs.getElementAsSEXP(i);
+          if (is_raw) {
+            result_raw[i] = converter.toRaw(element);
+          } else {
+            result[i] = converter.toString(element);
+          }
+        } else {
+          final String element = strings.getElementAsString(i);
+          if (is_raw) {
+            result_raw[i] = converter.toRaw(element);
+          } else {
+            result[i] = converter.toString(element);
+          }
+        }
+        if (converter.warning() != null) {
+          warn(i, converter.warning());
+        }
+      }
+    }.run();
+
+    return is_raw ? new ListVector(result_raw) : new StringArrayVector(result);
+  }
   public static SEXP stri_endswith_charclass(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_endswith_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
+  public static SEXP stri_endswith_coll(SEXP str, SEXP pattern, SEXP to, SEXP opts_collator) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern, to);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final IntVector tos = __ensure_length(length, stri_prepare_arg_integer(to, "to"));
+    final Logical[] result = new Logical[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || tos.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = Logical.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          final int end = tos.getElementAsInt(i) >= 0
+              ? __utf16_index(element, tos.getElementAsInt(i), false)
+              : __utf16_index(element, -tos.getElementAsInt(i) - 1, true);
+          final int start = search.preceding(end);
+          result[i] = Logical.valueOf(start != CollSearch.DONE && start + search.matchLength() == end);
+        }
+      }
+    }.run();
+
+    return new LogicalArrayVector(result);
+  }
   public static SEXP stri_endswith_fixed(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_escape_unicode(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_extract_first_boundaries(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
@@ -308,12 +692,102 @@ public class stringi {
   public static SEXP stri_extract_first_charclass(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_extract_last_charclass(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_extract_all_charclass(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_first_coll(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_last_coll(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_all_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_first_fixed(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_last_fixed(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_extract_all_fixed(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
+  public static SEXP stri_extract_first_coll(SEXP str, SEXP pattern, SEXP opts_collator) {
+    return __extract_first_or_last_coll(str, pattern, opts_collator, false);
+  }
+  public static SEXP stri_extract_last_coll(SEXP str, SEXP pattern, SEXP opts_collator) {
+    return __extract_first_or_last_coll(str, pattern, opts_collator, true);
+  }
+  public static SEXP stri_extract_all_coll(SEXP str, SEXP pattern, SEXP simplify, SEXP omit_no_match, SEXP opts_collator) {
+    final boolean is_omitting = ((AtomicVector) omit_no_match).getElementAsLogical(0).toBooleanStrict();
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final StringVector[] result = new StringVector[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = StringVector.valueOf(StringVector.NA);
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          // the matches are copied out of the string only when they are accessed
+          final SplitVector.Builder matches = new SplitVector.Builder();
+          for (int start = search.first(); start != CollSearch.DONE; start = search.next()) {
+            matches.add(start, start + search.matchLength(), false);
+          }
+          if (matches.size() <= 0) {
+            result[i] = is_omitting ? StringVector.EMPTY : StringVector.valueOf(StringVector.NA);
+          } else {
+            result[i] = matches.build(element);
+          }
+        }
+      }
+    }.run();
+
+    return __simplify_when_required(result, simplify, new IntArrayVector(0));
+  }
+  public static SEXP stri_extract_first_fixed(SEXP str, SEXP pattern, SEXP opts_fixed) {
+    return __extract_first_or_last_fixed(str, pattern, opts_fixed, false);
+  }
+  public static SEXP stri_extract_last_fixed(SEXP str, SEXP pattern, SEXP opts_fixed) {
+    return __extract_first_or_last_fixed(str, pattern, opts_fixed, true);
+  }
+  public static SEXP stri_extract_all_fixed(SEXP str, SEXP pattern, SEXP simplify, SEXP omit_no_match, SEXP opts_fixed) {
+    final boolean is_omitting = ((AtomicVector) omit_no_match).getElementAsLogical(0).toBooleanStrict();
+    final int flags = __fixed_flags(opts_fixed, true);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final boolean is_overlapping = (flags & FixedSearch.OVERLAP) > 0;
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final StringVector[] result = new StringVector[length];
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = StringVector.valueOf(StringVector.NA);
+        } else {
+          final String element = strings.getElementAsString(i);
+          final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+          final int count = searcher.findAll(element, is_overlapping);
+          if (count <= 0) {
+            result[i] = is_omitting ? StringVector.EMPTY : StringVector.valueOf(StringVector.NA);
+          } else {
+            // the matches are copied out of the string only when they are accessed
+            final SplitVector.Builder matches = new SplitVector.Builder();
+            final int patternLength = searcher.length();
+            for (int k = 0; k < count; k++) {
+              matches.add(searcher.start(k), searcher.start(k) + patternLength, false);
+            }
+            result[i] = matches.build(element);
+          }
+        }
+      }
+    }.run();
+
+    return __simplify_when_required(result, simplify, new IntArrayVector(0));
+  }
   public static SEXP stri_extract_first_regex(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_extract_last_regex(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_extract_all_regex(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
@@ -332,11 +806,15 @@ public class stringi {
             return __string_vector_NA(1);
           }
         }
-        final StringBuffer sb = new StringBuffer();
+        long size = 0;
+        for (int i = 0; i < length; i++) {
+          size += strings.getElementAsString(i).length();
+        }
+        final StringAssembler assembler = new StringAssembler().reset(size);
         for (int i = 0; i < length; i++) {
-          sb.append(strings.getElementAsString(i));
+          assembler.append(strings.getElementAsString(i));
         }
-        return StringVector.valueOf(sb.toString());
+        return StringVector.valueOf(assembler.toString());
       }
     } else {
       final StringVector strings = stri_prepare_arg_string(str, "str");
@@ -350,31 +828,43 @@ public class stringi {
           }
         }
         final String collapser = collapsers.getElementAsString(0);
-        final StringBuffer sb = new StringBuffer();
+        long size = (long) (length - 1) * collapser.length();
         for (int i = 0; i < length; i++) {
-          sb.append(strings.getElementAsString(i));
-          sb.append(collapser);
+          size += strings.getElementAsString(i).length();
+        }
+        final StringAssembler assembler = new StringAssembler().reset(size);
+        assembler.append(strings.getElementAsString(0));
+        for (int i = 1; i < length; i++) {
+          assembler.append(collapser).append(strings.getElementAsString(i));
         }
-        sb.setLength(sb.length() - collapser.length());
-        return StringVector.valueOf(sb.toString());
+        return StringVector.valueOf(assembler.toString());
       }
     }
   }
-  public static SEXP stri_info(SEXP s1, SEXP s0) { throw new EvalException("TODO"); }
+  public static SEXP stri_info() {
+    return new ListVector.NamedBuilder()
+        .add("Unicode.version", StringVector.valueOf(UCharacter.getUnicodeVersion().toString()))
+        .add("ICU.version", StringVector.valueOf(VersionInfo.ICU_VERSION.toString()))
+        .add("Locale", stri_locale_info(Null.INSTANCE))
+        .add("Charset.internal", new StringArrayVector("UTF-8", "UTF-16"))
+        .add("Charset.native", __charset_info(Charset.defaultCharset()))
+        .add("ICU.system", LogicalVector.FALSE) // ICU4J is bundled with the package
+        .add("Metrics", Instrumentation.snapshot())
+        .build();
+  }
   public static SEXP stri_isempty(SEXP str) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
-    final int length = strings.length();
-    final Logical[] result = new Logical[length];
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = Logical.NA;
-      } else {
-        result[i] = Logical.valueOf(strings.getElementAsString(i).isEmpty());
+    return new DeferredLogicalVector(strings.length()) {
+      @Override
+      protected int compute(int i) {
+        if (strings.isElementNA(i)) {
+          return LogicalVector.NA;
+        } else {
+          return strings.getElementAsString(i).isEmpty() ? 1 : 0;
+        }
       }
-    }
-
-    return new LogicalArrayVector(result);
+    }.deferOrCompute();
   }
   public static SEXP stri_join(SEXP strlist, SEXP sep, SEXP collapse, SEXP ignore_null) {
     if (Null.INSTANCE.equals(collapse)) {
@@ -389,7 +879,7 @@ public class stringi {
       } else if (strlist_length == 1) {
         // one vector + collapse string -- another frequently occurring case
         // sep is ignored here
-        return stri_flatten(strlist.getElementAsSEXP(0), collapse);
+        return stri_flatten(lists.getElementAsSEXP(0), collapse);
       } else {
         final StringVector separators = stri_prepare_arg_string(sep, "sep");
         final StringVector collapsers = stri_prepare_arg_string(collapse, "collapse");
@@ -409,28 +899,31 @@ public class stringi {
               vectorize_length = current_length;
             }
           }
+          final String separator = separators.getElementAsString(0);
+          final String collapser = collapsers.getElementAsString(0);
+          long size = (long) vectorize_length * (strlist_length - 1) * separator.length()
+              + (long) (vectorize_length - 1) * collapser.length();
           final StringVector[] vectorized = new StringVector[strlist_length];
           for (int j = 0; j < strlist_length; j++) {
-            vectorized[j] = __ensure_length(vectorize_length, stri_prepare_arg_string(strlist.getElementAsSEXP(j), "strlist" + j));
+            vectorized[j] = __ensure_length(vectorize_length, stri_prepare_arg_string(lists.getElementAsSEXP(j), "strlist" + j));
             for (int i = 0; i < vectorize_length; i++) {
               if (vectorized[j].isElementNA(i)) {
                 return __string_vector_NA(1);
               }
+              size += vectorized[j].getElementAsString(i).length();
             }
           }
-          final String separator = separators.getElementAsString(0);
-          final String collapser = collapsers.getElementAsString(0);
-          final StringBuffer sb = new StringBuffer();
+          final StringAssembler assembler = new StringAssembler().reset(size);
           for (int i = 0; i < vectorize_length; i++) {
-            for (int j = 0; j < strlist_length; j++) {
-              sb.append(vectorized[j].getElementAsString(i));
-              sb.append(separator);
+            if (i > 0) {
+              assembler.append(collapser);
+            }
+            assembler.append(vectorized[0].getElementAsString(i));
+            for (int j = 1; j < strlist_length; j++) {
+              assembler.append(separator).append(vectorized[j].getElementAsString(i));
             }
-            sb.setLength(sb.length() - separator.length());
-            sb.append(collapser);
           }
-          sb.setLength(sb.length() - collapser.length());
-          return StringVector.valueOf(sb.toString());
+          return StringVector.valueOf(assembler.toString());
         }
       }
     }
@@ -461,18 +954,19 @@ public class stringi {
   }
   public static SEXP stri_length(SEXP str) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
-    final int length = strings.length();
-    final int[] result = new int[length];
+    final boolean is_bmp = __char_range(strings).isBmp();
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = IntVector.NA;
-      } else {
-        result[i] = strings.getElementAsString(i).length();
+    return new DeferredIntVector(strings.length()) {
+      @Override
+      protected int compute(int i) {
+        if (strings.isElementNA(i)) {
+          return IntVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          return is_bmp ? element.length() : element.codePointCount(0, element.length());
+        }
       }
-    }
-
-    return new IntArrayVector(result);
+    }.deferOrCompute();
   }
   public static SEXP stri_list2matrix(SEXP x, SEXP byrow, SEXP fill, SEXP n_min) {
     final boolean bycolumn = !((AtomicVector) byrow).getElementAsLogical(0).toBooleanStrict();
@@ -523,8 +1017,23 @@ public class stringi {
       return matrix;
     }
   }
-  public static SEXP stri_locale_info(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_locale_list(SEXP s1, SEXP s0) { throw new EvalException("TODO"); }
+  public static SEXP stri_locale_info(SEXP locale) {
+    final ULocale uloc = __prepare_arg_locale(locale, "locale");
+    return new ListVector.NamedBuilder()
+        .add("Language", StringVector.valueOf(uloc.getLanguage()))
+        .add("Country", StringVector.valueOf(uloc.getCountry()))
+        .add("Variant", StringVector.valueOf(uloc.getVariant()))
+        .add("Name", StringVector.valueOf(ULocale.canonicalize(uloc.getName())))
+        .build();
+  }
+  public static SEXP stri_locale_list() {
+    final ULocale[] locales = ULocale.getAvailableLocales();
+    final String[] result = new String[locales.length];
+    for (int i = 0; i < locales.length; i++) {
+      result[i] = locales[i].getName();
+    }
+    return new StringArrayVector(result);
+  }
   public static SEXP stri_locale_set(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_all_boundaries(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_first_boundaries(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
@@ -532,12 +1041,137 @@ public class stringi {
   public static SEXP stri_locate_first_charclass(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_last_charclass(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_all_charclass(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_last_fixed(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_first_fixed(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_all_fixed(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_last_coll(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_first_coll(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_locate_all_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
+  public static SEXP stri_locate_last_fixed(SEXP str, SEXP pattern, SEXP opts_fixed) {
+    return __locate_first_or_last_fixed(str, pattern, opts_fixed, true);
+  }
+  public static SEXP stri_locate_first_fixed(SEXP str, SEXP pattern, SEXP opts_fixed) {
+    return __locate_first_or_last_fixed(str, pattern, opts_fixed, false);
+  }
+  public static SEXP stri_locate_all_fixed(SEXP str, SEXP pattern, SEXP omit_no_match, SEXP opts_fixed) {
+    final boolean is_omitting = ((AtomicVector) omit_no_match).getElementAsLogical(0).toBooleanStrict();
+    final int flags = __fixed_flags(opts_fixed, true);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final boolean is_overlapping = (flags & FixedSearch.OVERLAP) > 0;
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final CharRange range = CharRange.of(prepared);
+    final boolean is_ascii = is_insensitive && range.isAscii();
+    final boolean is_bmp = range.isBmp();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final SEXP[] result = new SEXP[length];
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = __locate_matrix(new int[] { IntVector.NA, IntVector.NA }, 1);
+        } else {
+          final String element = strings.getElementAsString(i);
+          final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+          final int count = searcher.findAll(element, is_overlapping);
+          if (count <= 0) {
+            result[i] = is_omitting ? __locate_matrix(new int[0], 0) : __locate_matrix(new int[] { IntVector.NA, IntVector.NA }, 1);
+          } else {
+            final int patternLength = searcher.length();
+            final int[] bounds = new int[2 * count];
+            int position = 0; // in code points, of offset
+            int offset = 0;
+            for (int k = 0; k < count; k++) {
+              final int start = searcher.start(k);
+              if (is_bmp) {
+                position = start;
+              } else {
+                position += element.codePointCount(offset, start);
+                offset = start;
+              }
+              bounds[k] = position + 1;
+              bounds[k + count] = position + (is_bmp ? patternLength : element.codePointCount(start, start + patternLength));
+            }
+            result[i] = __locate_matrix(bounds, count);
+          }
+        }
+      }
+    }.run();
+
+    return new ListVector(result);
+  }
+  public static SEXP stri_locate_last_coll(SEXP str, SEXP pattern, SEXP opts_collator) {
+    return __locate_first_or_last_coll(str, pattern, opts_collator, true);
+  }
+  public static SEXP stri_locate_first_coll(SEXP str, SEXP pattern, SEXP opts_collator) {
+    return __locate_first_or_last_coll(str, pattern, opts_collator, false);
+  }
+  public static SEXP stri_locate_all_coll(SEXP str, SEXP pattern, SEXP omit_no_match, SEXP opts_collator) {
+    final boolean is_omitting = ((AtomicVector) omit_no_match).getElementAsLogical(0).toBooleanStrict();
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_bmp = CharRange.of(prepared).isBmp();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final SEXP[] result = new SEXP[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = __locate_matrix(new int[] { IntVector.NA, IntVector.NA }, 1);
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          // starts then ends, in UTF-16 code units, grown as needed
+          int[] offsets = new int[16];
+          int count = 0;
+          for (int start = search.first(); start != CollSearch.DONE; start = search.next()) {
+            if (2 * count + 2 > offsets.length) {
+              offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            }
+            offsets[2 * count] = start;
+            offsets[2 * count + 1] = start + search.matchLength();
+            count++;
+          }
+          if (count <= 0) {
+            result[i] = is_omitting ? __locate_matrix(new int[0], 0) : __locate_matrix(new int[] { IntVector.NA, IntVector.NA }, 1);
+          } else {
+            final int[] bounds = new int[2 * count];
+            int position = 0; // in code points, of offset
+            int offset = 0;
+            for (int k = 0; k < count; k++) {
+              final int start = offsets[2 * k];
+              final int end = offsets[2 * k + 1];
+              if (is_bmp) {
+                bounds[k] = start + 1;
+                bounds[k + count] = end;
+              } else {
+                position += element.codePointCount(offset, start);
+                offset = start;
+                bounds[k] = position + 1;
+                bounds[k + count] = position + element.codePointCount(start, end);
+              }
+            }
+            result[i] = __locate_matrix(bounds, count);
+          }
+        }
+      }
+    }.run();
+
+    return new ListVector(result);
+  }
   public static SEXP stri_locate_all_regex(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_first_regex(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_locate_last_regex(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
@@ -546,21 +1180,27 @@ public class stringi {
   public static SEXP stri_match_all_regex(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
   public static SEXP stri_numbytes(SEXP str) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
-    final int length = strings.length();
-    final int[] result = new int[length];
+    final boolean is_ascii = __char_range(strings).isAscii();
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = IntVector.NA;
-      } else {
-        result[i] = Utf8.encodedLength(strings.getElementAsString(i));
+    return new DeferredIntVector(strings.length()) {
+      @Override
+      protected int compute(int i) {
+        if (strings.isElementNA(i)) {
+          return IntVector.NA;
+        } else if (is_ascii) {
+          return strings.getElementAsString(i).length();
+        } else {
+          return Utf8.encodedLength(strings.getElementAsString(i));
+        }
       }
-    }
-
-    return new IntArrayVector(result);
+    }.deferOrCompute();
+  }
+  public static SEXP stri_order(SEXP str, SEXP decreasing, SEXP na_last, SEXP opts_collator) {
+    return __order_or_sort(str, decreasing, na_last, opts_collator, false);
+  }
+  public static SEXP stri_sort(SEXP str, SEXP decreasing, SEXP na_last, SEXP opts_collator) {
+    return __order_or_sort(str, decreasing, na_last, opts_collator, true);
   }
-  public static SEXP stri_order(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
-  public static SEXP stri_sort(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_pad(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
   public static StringVector stri_prepare_arg_string(SEXP s, String name) {
     if (s instanceof StringVector) {
@@ -623,6 +1263,82 @@ public class stringi {
   public static SEXP stri_prepare_arg_logical_1(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_rand_shuffle(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_rand_strings(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
+  public static SEXP stri_read_raw(SEXP fname, SEXP n) {
+    final File file = __prepare_arg_file(fname, "fname");
+    final IntVector limits = stri_prepare_arg_integer(n, "n");
+    try {
+      final RandomAccessFile input = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = input.getChannel();
+        long size = channel.size();
+        if (limits.length() > 0 && !limits.isElementNA(0) && limits.getElementAsInt(0) >= 0) {
+          size = Math.min(size, limits.getElementAsInt(0));
+        }
+        if (size > StringAssembler.MAX_LENGTH) {
+          throw new EvalException("file `" + file + "` is too large to be read as a raw vector");
+        }
+        final byte[] result = new byte[(int) size];
+        final ByteBuffer buffer = ByteBuffer.wrap(result);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) < 0) {
+            break; // the file was truncated since its size was taken
+          }
+        }
+        return new RawArrayVector(buffer.hasRemaining() ? Arrays.copyOf(result, buffer.position()) : result);
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      throw new EvalException("cannot read file `" + file + "`: " + e.getMessage(), e);
+    }
+  }
+  public static SEXP stri_read_lines(SEXP fname, SEXP encoding) {
+    final File file = __prepare_arg_file(fname, "fname");
+    final Charset charset = __prepare_arg_charset(encoding, "encoding");
+    final List<String> lines = new ArrayList<String>();
+    try {
+      final LineReader reader = new LineReader(file, charset);
+      try {
+        reader.read(lines, -1);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      throw new EvalException("cannot read file `" + file + "`: " + e.getMessage(), e);
+    }
+    return new StringArrayVector(lines);
+  }
+  public static SEXP stri_read_lines_open(SEXP fname, SEXP encoding) {
+    final File file = __prepare_arg_file(fname, "fname");
+    final Charset charset = __prepare_arg_charset(encoding, "encoding");
+    try {
+      return new ExternalPtr<LineReader>(new LineReader(file, charset));
+    } catch (IOException e) {
+      throw new EvalException("cannot open file `" + file + "`: " + e.getMessage(), e);
+    }
+  }
+  public static SEXP stri_read_lines_next(SEXP con, SEXP n) {
+    final LineReader reader = __prepare_arg_line_reader(con);
+    final IntVector counts = stri_prepare_arg_integer(n, "n");
+    if (counts.length() <= 0 || counts.isElementNA(0) || counts.getElementAsInt(0) <= 0) {
+      throw new EvalException("argument `n` should be a positive integer");
+    }
+    final List<String> lines = new ArrayList<String>();
+    try {
+      reader.read(lines, counts.getElementAsInt(0));
+    } catch (IOException e) {
+      throw new EvalException("cannot read lines: " + e.getMessage(), e);
+    }
+    return new StringArrayVector(lines);
+  }
+  public static SEXP stri_read_lines_close(SEXP con) {
+    try {
+      __prepare_arg_line_reader(con).close();
+    } catch (IOException e) {
+      throw new EvalException("cannot close file: " + e.getMessage(), e);
+    }
+    return Null.INSTANCE;
+  }
   public static SEXP stri_replace_na(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_replace_all_fixed(SEXP str, SEXP pattern, SEXP replacement, SEXP vectorize_all, SEXP opts_fixed) {
     final boolean is_vectorized = ((AtomicVector) vectorize_all).getElementAsLogical(0).toBooleanStrict();
@@ -650,6 +1366,7 @@ public class stringi {
         final StringVector strings = stri_prepare_arg_string(str, "str");
         final StringVector patterns = stri_prepare_arg_string(pattern, "pattern");
         final StringVector replacements = __ensure_length(pattern_n, stri_prepare_arg_string(replacement, "replacement"));
+        final String[] searchPatterns = new String[pattern_n];
         for (int i = 0; i < pattern_n; i++) {
           if (patterns.isElementNA(i)) {
             return __string_vector_NA(length);
@@ -657,38 +1374,38 @@ public class stringi {
             Native.currentContext().warn("empty search patterns are not supported");
             return __string_vector_NA(length);
           }
-          for (int j = 0; j < length; j++) {
+          searchPatterns[i] = patterns.getElementAsString(i);
+        }
+        // patterns are applied one after another, each to the outcome of the previous one;
+        // the automaton finds the next pattern that actually occurs, so the others are skipped
+        final AhoCorasick automaton = new AhoCorasick(searchPatterns, is_insensitive);
+        new ElementLoop<FixedSearch[]>(length) {
+          @Override
+          protected FixedSearch[] createState() {
+            return new FixedSearch[pattern_n];
+          }
+          @Override
+          protected void compute(int j, FixedSearch[] searchers) {
             if (strings.isElementNA(j)) {
               result[j] = StringVector.NA;
             } else {
-              final String element = strings.getElementAsString(j);
-              final String separatorPattern = patterns.getElementAsString(i);
-              final String patternNormalized = is_insensitive ? separatorPattern.toUpperCase() : separatorPattern;
-              final String elementNormalized = is_insensitive ? element.toUpperCase() : element;
-              if (replacements.isElementNA(i)) {
-                if (-1 < elementNormalized.indexOf(patternNormalized)) {
-                  result[j] = StringVector.NA;
-                } else {
-                  result[j] = element;
+              String element = strings.getElementAsString(j);
+              int i = automaton.firstMatch(element, 0);
+              while (i >= 0) {
+                if (replacements.isElementNA(i)) {
+                  element = StringVector.NA;
+                  break;
                 }
-              } else {
-                final String replacement_i = replacements.getElementAsString(i);
-                final int patternLength = separatorPattern.length();
-                final StringBuffer replaced = new StringBuffer();
-                int previousStart = 0;
-                int beginIndex = elementNormalized.indexOf(patternNormalized);
-                while (beginIndex != -1) {
-                  replaced.append(element.substring(previousStart, beginIndex));
-                  replaced.append(replacement_i);
-                  previousStart = beginIndex + patternLength;
-                  beginIndex = elementNormalized.indexOf(patternNormalized, previousStart);
+                if (searchers[i] == null) {
+                  searchers[i] = new FixedSearch(searchPatterns[i], is_insensitive, false);
                 }
-                replaced.append(element.substring(previousStart));
-                result[j] = replaced.toString();
+                element = __replace_all_fixed(element, searchers[i], replacements.getElementAsString(i));
+                i = (i + 1 < pattern_n) ? automaton.firstMatch(element, i + 1) : -1;
               }
+              result[j] = element;
             }
           }
-        }
+        }.run();
         return new StringArrayVector(result);
       }
     }
@@ -700,13 +1417,73 @@ public class stringi {
     return __replace_all_fixed_vectorized(str, pattern, replacement, opts_fixed, ReplaceType.LAST);
   }
   public static SEXP stri_replace_all_coll(SEXP str, SEXP pattern, SEXP replacement, SEXP vectorize_all, SEXP opts_collator) {
-    throw new EvalException("TODO");
+    final boolean is_vectorized = ((AtomicVector) vectorize_all).getElementAsLogical(0).toBooleanStrict();
+    if (is_vectorized) {
+      return __replace_all_coll_vectorized(str, pattern, replacement, opts_collator, ReplaceType.ALL);
+    } else {
+      final int length = str.length();
+      if (length <= 0) {
+        return StringVector.EMPTY;
+      } else {
+        final int pattern_n = pattern.length();
+        final int replacement_n = replacement.length();
+        if (pattern_n < replacement_n || pattern_n <= 0 || replacement_n <= 0) {
+          throw new EvalException("vector length not consistent with other arguments");
+        }
+        if (pattern_n % replacement_n != 0) {
+          Native.currentContext().warn("longer object length is not a multiple of shorter object length");
+        }
+        if (pattern_n == 1) {// this will be much faster:
+          return __replace_all_coll_vectorized(str, pattern, replacement, opts_collator, ReplaceType.ALL);
+        }
+        final RuleBasedCollator collator = __open_search_collator(opts_collator);
+        final String[] result = new String[length];
+        final StringVector strings = stri_prepare_arg_string(str, "str");
+        final StringVector patterns = stri_prepare_arg_string(pattern, "pattern");
+        final StringVector replacements = __ensure_length(pattern_n, stri_prepare_arg_string(replacement, "replacement"));
+        for (int i = 0; i < pattern_n; i++) {
+          if (patterns.isElementNA(i)) {
+            return __string_vector_NA(length);
+          } else if (patterns.getElementAsString(i).length() <= 0) {
+            Native.currentContext().warn("empty search patterns are not supported");
+            return __string_vector_NA(length);
+          }
+        }
+        new ElementLoop<CollSearch>(length) {
+          @Override
+          protected CollSearch createState() {
+            return new CollSearch(collator);
+          }
+          @Override
+          protected void compute(int j, CollSearch search) {
+            if (strings.isElementNA(j)) {
+              result[j] = StringVector.NA;
+              return;
+            }
+            // each pattern is applied to the outcome of the previous one
+            String element = strings.getElementAsString(j);
+            for (int i = 0; i < pattern_n && element != null; i++) {
+              search.reset(patterns.getElementAsString(i), element);
+              if (replacements.isElementNA(i)) {
+                if (search.first() != CollSearch.DONE) {
+                  element = StringVector.NA;
+                }
+              } else {
+                element = __replace_all_coll(element, search, replacements.getElementAsString(i));
+              }
+            }
+            result[j] = element;
+          }
+        }.run();
+        return new StringArrayVector(result);
+      }
+    }
   }
   public static SEXP stri_replace_first_coll(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_collator) {
-    throw new EvalException("TODO");
+    return __replace_all_coll_vectorized(str, pattern, replacement, opts_collator, ReplaceType.FIRST);
   }
   public static SEXP stri_replace_last_coll(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_collator) {
-    throw new EvalException("TODO");
+    return __replace_all_coll_vectorized(str, pattern, replacement, opts_collator, ReplaceType.LAST);
   }
   public static SEXP stri_replace_all_regex(SEXP str, SEXP pattern, SEXP replacement, SEXP vectorize_all, SEXP opts_regex) {
     final boolean is_vectorized = ((AtomicVector) vectorize_all).getElementAsLogical(0).toBooleanStrict();
@@ -729,10 +1506,12 @@ public class stringi {
           return __replace_all_regex_vectorized(str, pattern, replacement, opts_regex, ReplaceType.ALL);
         }
         final int flags = __regex_flags(opts_regex);
+        final int timeLimit = __regex_time_limit(opts_regex);
         final String[] result = new String[length];
         final StringVector strings = stri_prepare_arg_string(str, "str");
         final StringVector patterns = stri_prepare_arg_string(pattern, "pattern");
         final StringVector replacements = __ensure_length(pattern_n, stri_prepare_arg_string(replacement, "replacement"));
+        final RegexPattern[] compiled = new RegexPattern[pattern_n];
         for (int i = 0; i < pattern_n; i++) {
           if (patterns.isElementNA(i)) {
             return __string_vector_NA(length);
@@ -740,25 +1519,38 @@ public class stringi {
             Native.currentContext().warn("empty search patterns are not supported");
             return __string_vector_NA(length);
           }
-          for (int j = 0; j < length; j++) {
+          compiled[i] = __compile_regex(patterns.getElementAsString(i), flags);
+        }
+        new ElementLoop<RegexMatcher[]>(length) {
+          @Override
+          protected RegexMatcher[] createState() {
+            final RegexMatcher[] matchers = new RegexMatcher[pattern_n];
+            for (int i = 0; i < pattern_n; i++) {
+              matchers[i] = compiled[i].matcher("", timeLimit);
+            }
+            return matchers;
+          }
+          @Override
+          protected void compute(int j, RegexMatcher[] matchers) {
             if (strings.isElementNA(j)) {
               result[j] = StringVector.NA;
-            } else {
-              final String element = strings.getElementAsString(j);
-              final String appliedPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-              final Matcher matcher = Pattern.compile(appliedPattern, flags).matcher(element);
+              return;
+            }
+            // each pattern is applied to the outcome of the previous one
+            String element = strings.getElementAsString(j);
+            for (int i = 0; i < pattern_n && element != null; i++) {
+              final RegexMatcher matcher = matchers[i].reset(element);
               if (replacements.isElementNA(i)) {
                 if (matcher.find()) {
-                  result[j] = StringVector.NA;
-                } else {
-                  result[j] = element;
+                  element = StringVector.NA;
                 }
               } else {
-                matcher.replaceAll(replacements.getElementAsString(i));
+                element = matcher.replaceAll(replacements.getElementAsString(i));
               }
             }
+            result[j] = element;
           }
-        }
+        }.run();
         return new StringArrayVector(result);
       }
     }
@@ -794,29 +1586,30 @@ public class stringi {
         final StringVector strings = stri_prepare_arg_string(str, "str");
         final StringVector patterns = stri_prepare_arg_string(pattern, "pattern");
         final StringVector replacements = __ensure_length(pattern_n, stri_prepare_arg_string(replacement, "replacement"));
+        final UnicodeSet[] charclasses = new UnicodeSet[pattern_n];
         for (int i = 0; i < pattern_n; i++) {
           if (patterns.isElementNA(i)) {
             return __string_vector_NA(length);
           }
-          for (int j = 0; j < length; j++) {
-            if (strings.isElementNA(j)) {
-              result[j] = StringVector.NA;
-            } else {
-              final String element = strings.getElementAsString(j);
-              final String pattern_i = __normalize_binary_properties(patterns.getElementAsString(i));
+          charclasses[i] = __open_charclass(patterns.getElementAsString(i));
+        }
+        // patterns are applied one after another, each to the outcome of the previous one
+        new ElementLoop<Void>(length) {
+          @Override
+          protected void compute(int j, Void state) {
+            String element = strings.getElementAsString(j);
+            for (int i = 0; i < pattern_n && element != null; i++) {
               if (replacements.isElementNA(i)) {
-                if (Pattern.compile(pattern_i).matcher(element).find()) {
-                  result[j] = StringVector.NA;
-                } else {
-                  result[j] = element;
+                if (charclasses[i].span(element, UnicodeSet.SpanCondition.NOT_CONTAINED) < element.length()) {
+                  element = StringVector.NA;
                 }
               } else {
-                final String appliedPattern = (is_merging) ? "(?:" + pattern_i + ")+" : pattern_i;
-                result[j] = element.replaceAll(appliedPattern, replacements.getElementAsString(i));
+                element = __replace_all_charclass(element, charclasses[i], replacements.getElementAsString(i), is_merging);
               }
             }
+            result[j] = element;
           }
-        }
+        }.run();
         return new StringArrayVector(result);
       }
     }
@@ -834,50 +1627,57 @@ public class stringi {
     final StringVector[] result = new StringVector[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final IntVector ns = __ensure_length(length, stri_prepare_arg_integer(n, "n"));
+    final BreakIterator prototype = __open_break_iterator(opts_brkiter, "line_break");
 
-    for (int i = 0; i < length; i++) {
-      if (ns.isElementNA(i)) {
-        result[i] = StringVector.valueOf(StringVector.NA);
-      } else {
-        if (strings.isElementNA(i)) {
+    new ElementLoop<BreakIterator>(length) {
+      @Override
+      protected BreakIterator createState() {
+        return (BreakIterator) prototype.clone();
+      }
+      @Override
+      protected void compute(int i, BreakIterator brkiter) {
+        if (ns.isElementNA(i)) {
           result[i] = StringVector.valueOf(StringVector.NA);
         } else {
-          int depth = ns.getElementAsInt(i);
-          if (depth == 0) {
-            result[i] = StringVector.EMPTY;
+          if (strings.isElementNA(i)) {
+            result[i] = StringVector.valueOf(StringVector.NA);
           } else {
-            if (depth >= Integer.MAX_VALUE - 1) {
-              throw new IllegalArgumentException("argument `" + depth + "`: value too large");
-            } else if (depth < 0) {
-              depth = Integer.MAX_VALUE;
-            }
-            final LinkedList<String> fields = new LinkedList<String>();
-            final BreakIterator brkiter = __open_break_iterator(opts_brkiter, "line_break");
-            final String element = strings.getElementAsString(i);
-            brkiter.setText(strings.getElementAsString(i));
-            int previousStart = brkiter.first();
-            int k = 0;
-            while (k < depth && BreakIterator.DONE < brkiter.next()) {
-              // FIXME handle skip_* rules
-              fields.add(element.substring(previousStart, brkiter.current()));
-              previousStart = brkiter.current();
-              ++k; // another field
-            }
-            if (fields.size() <= 0) {
+            int depth = ns.getElementAsInt(i);
+            if (depth == 0) {
               result[i] = StringVector.EMPTY;
             } else {
-              if (k == depth && !only_tokens) {
-                fields.removeLast();
-                fields.add(element.substring(previousStart, element.length()));
+              if (depth >= Integer.MAX_VALUE - 1) {
+                throw new IllegalArgumentException("argument `" + depth + "`: value too large");
+              } else if (depth < 0) {
+                depth = Integer.MAX_VALUE;
+              }
+              final SplitVector.Builder fields = new SplitVector.Builder();
+              final String element = strings.getElementAsString(i);
+              brkiter.setText(strings.getElementAsString(i));
+              int previousStart = brkiter.first();
+              int k = 0;
+              while (k < depth && BreakIterator.DONE < brkiter.next()) {
+                // FIXME handle skip_* rules
+                fields.add(previousStart, brkiter.current(), false);
+                previousStart = brkiter.current();
+                ++k; // another field
+              }
+              if (fields.size() <= 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                if (k == depth && !only_tokens) {
+                  fields.removeLast();
+                  fields.add(previousStart, element.length(), false);
+                }
+                result[i] = fields.build(element);
               }
-              result[i] = new StringArrayVector(fields);
             }
           }
         }
       }
-    }
+    }.run();
 
-    return __simplify_when_required(new ListVector(result), simplify, n);
+    return __simplify_when_required(result, simplify, n);
   }
   public static SEXP stri_split_charclass(SEXP str, SEXP pattern, SEXP n, SEXP omit_empty, SEXP tokens_only, SEXP simplify) {
     final boolean only_tokens = ((AtomicVector) tokens_only).getElementAsLogical(0).toBooleanStrict();
@@ -888,66 +1688,67 @@ public class stringi {
     final IntVector ns = __ensure_length(length, stri_prepare_arg_integer(n, "n"));
     final LogicalVector omits = __ensure_length(length, stri_prepare_arg_logical(omit_empty, "omit_empty"));
 
-    String lastPattern = null;
-    UnicodeSet matcher = null;
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || ns.isElementNA(i)) {
-        result[i] = StringVector.valueOf(StringVector.NA);
-      } else {
-        final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
-        int depth = ns.getElementAsInt(i);
-        if (depth == 0) {
-          result[i] = StringVector.EMPTY;
+    new ElementLoop<LastPattern<UnicodeSet>>(length) {
+      @Override
+      protected LastPattern<UnicodeSet> createState() {
+        return new LastPattern<UnicodeSet>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<UnicodeSet> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || ns.isElementNA(i)) {
+          result[i] = StringVector.valueOf(StringVector.NA);
         } else {
-          if (depth >= Integer.MAX_VALUE - 1) {
-            throw new IllegalArgumentException("argument `" + depth + "`: value too large");
-          } else if (depth < 0) {
-            depth = Integer.MAX_VALUE;
-          } else if (only_tokens) {
-            depth++; // we need to do one split ahead here
-          }
-          final LinkedList<String> fields = new LinkedList<String>();
-          final String element = strings.getElementAsString(i);
-          final String separatorPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-          if (!separatorPattern.equals(lastPattern)) {
-            lastPattern = separatorPattern;
-            matcher = new UnicodeSet(separatorPattern);
-          }
-          int previousStart = 0;
-          for (int k = 0; previousStart < element.length() && k < depth;) {
-            final int beginIndex = matcher.span(element, previousStart, UnicodeSet.SpanCondition.NOT_CONTAINED);
-            final int endIndex = matcher.span(element, beginIndex, UnicodeSet.SpanCondition.CONTAINED);
-            if (omit && previousStart == beginIndex) {
-              // don't start any new field
-            } else { // start a new field here
-              final String field = element.substring(previousStart, beginIndex);
-              fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-              ++k; // another field
+          final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
+          int depth = ns.getElementAsInt(i);
+          if (depth == 0) {
+            result[i] = StringVector.EMPTY;
+          } else {
+            if (depth >= Integer.MAX_VALUE - 1) {
+              throw new IllegalArgumentException("argument `" + depth + "`: value too large");
+            } else if (depth < 0) {
+              depth = Integer.MAX_VALUE;
+            } else if (only_tokens) {
+              depth++; // we need to do one split ahead here
             }
-            previousStart = endIndex;
-          }
-          if (!(omit && previousStart == element.length())) {
-            final String field = element.substring(previousStart, element.length());
-            fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-          }
-          if (only_tokens && depth < Integer.MAX_VALUE) {
-            depth--; // one split ahead could have been made, see above
-            while (fields.size() > depth) {
-              fields.removeLast(); // get rid of the remainder
+            final SplitVector.Builder fields = new SplitVector.Builder();
+            final String element = strings.getElementAsString(i);
+            final UnicodeSet charclass = __charclass(last, patterns.getElementAsString(i));
+            int previousStart = 0;
+            // the fields before the last end at a match, the last one holds the rest of the element
+            for (int k = 1; previousStart < element.length() && k < depth;) {
+              final int beginIndex = charclass.span(element, previousStart, UnicodeSet.SpanCondition.NOT_CONTAINED);
+              if (beginIndex == element.length()) {
+                break;
+              }
+              final int endIndex = charclass.span(element, beginIndex, UnicodeSet.SpanCondition.CONTAINED);
+              if (omit && previousStart == beginIndex) {
+                // don't start any new field
+              } else { // start a new field here
+                fields.add(previousStart, beginIndex, omits.isElementNA(i));
+                ++k; // another field
+              }
+              previousStart = endIndex;
+            }
+            if (!(omit && previousStart == element.length())) {
+              fields.add(previousStart, element.length(), omits.isElementNA(i));
             }
+            if (only_tokens && depth < Integer.MAX_VALUE) {
+              depth--; // one split ahead could have been made, see above
+              while (fields.size() > depth) {
+                fields.removeLast(); // get rid of the remainder
+              }
+            }
+            result[i] = fields.build(element);
           }
-          result[i] = new StringArrayVector(fields);
         }
       }
-    }
+    }.run();
 
-    return __simplify_when_required(new ListVector(result), simplify, n);
+    return __simplify_when_required(result, simplify, n);
   }
-  public static SEXP stri_split_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5, SEXP s6, SEXP s7) { throw new EvalException("TODO"); }
-  public static SEXP stri_split_fixed(SEXP str, SEXP pattern, SEXP n, SEXP omit_empty, SEXP tokens_only, SEXP simplify, SEXP opts_fixed) {
+  public static SEXP stri_split_coll(SEXP str, SEXP pattern, SEXP n, SEXP omit_empty, SEXP tokens_only, SEXP simplify, SEXP opts_collator) {
     final boolean only_tokens = ((AtomicVector) tokens_only).getElementAsLogical(0).toBooleanStrict();
-    final int flags = __fixed_flags(opts_fixed, false);
-    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
     final int length = __recycling_rule(true, str, pattern, n, omit_empty);
     final StringVector[] result = new StringVector[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
@@ -955,95 +1756,181 @@ public class stringi {
     final IntVector ns = __ensure_length(length, stri_prepare_arg_integer(n, "n"));
     final LogicalVector omits = __ensure_length(length, stri_prepare_arg_logical(omit_empty, "omit_empty"));
 
-    for (int i = 0; i < length; i++) {
-      if (ns.isElementNA(i)) {
-        result[i] = StringVector.valueOf(StringVector.NA);
-      } else {
-        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
-          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
-            Native.currentContext().warn("empty search patterns are not supported");
-          }
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (ns.isElementNA(i)) {
           result[i] = StringVector.valueOf(StringVector.NA);
         } else {
-          int depth = ns.getElementAsInt(i);
-          final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
-          final String element = strings.getElementAsString(i);
-          if (element.length() <= 0) {
-            if (omits.isElementNA(i)) {
-              result[i] = StringVector.valueOf(StringVector.NA);
-            } else if (omit || depth == 0) {
-              result[i] = StringVector.EMPTY;
-            } else {
-              result[i] = StringVector.valueOf("");
+          if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+            if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+              warn(i, "empty search patterns are not supported");
             }
+            result[i] = StringVector.valueOf(StringVector.NA);
           } else {
-            if (depth == 0) {
-              result[i] = StringVector.EMPTY;
-            } else {
-              if (depth >= Integer.MAX_VALUE - 1) {
-                throw new IllegalArgumentException("argument `" + depth + "`: value too large");
-              } else if (depth < 0) {
-                depth = Integer.MAX_VALUE;
-              } else if (only_tokens) {
-                depth++; // we need to do one split ahead here
+            int depth = ns.getElementAsInt(i);
+            final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
+            final String element = strings.getElementAsString(i);
+            if (element.length() <= 0) {
+              if (omits.isElementNA(i)) {
+                result[i] = StringVector.valueOf(StringVector.NA);
+              } else if (omit || depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                result[i] = StringVector.valueOf("");
               }
-              final LinkedList<String> fields = new LinkedList<String>();
-              final String separatorPattern = patterns.getElementAsString(i);
-              final String patternNormalized = is_insensitive ? separatorPattern.toUpperCase() : separatorPattern;
-              final String elementNormalized = is_insensitive ? element.toUpperCase() : element;
-              final int patternLength = separatorPattern.length();
-              int previousStart = 0;
-              for (int k = 0; previousStart < element.length() && k < depth;) {
-                final int beginIndex = elementNormalized.indexOf(patternNormalized, previousStart);
-                if (-1 < beginIndex) {
+            } else {
+              if (depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                if (depth >= Integer.MAX_VALUE - 1) {
+                  throw new IllegalArgumentException("argument `" + depth + "`: value too large");
+                } else if (depth < 0) {
+                  depth = Integer.MAX_VALUE;
+                } else if (only_tokens) {
+                  depth++; // we need to do one split ahead here
+                }
+                final SplitVector.Builder fields = new SplitVector.Builder();
+                search.reset(patterns.getElementAsString(i), element);
+                int previousStart = 0;
+                // the fields before the last end at a match, the last one holds the rest of the element
+                for (int k = 1; previousStart < element.length() && k < depth;) {
+                  final int beginIndex = search.following(previousStart);
+                  if (beginIndex == CollSearch.DONE) {
+                    break;
+                  }
                   if (omit && previousStart == beginIndex) {
                     // don't start any new field
                   } else { // start a new field here
-                    final String field = element.substring(previousStart, beginIndex);
-                    fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
+                    fields.add(previousStart, beginIndex, omits.isElementNA(i));
                     ++k; // another field
                   }
-                  previousStart = beginIndex + patternLength;
-                } else { // start a new field here
-                  final String field = element.substring(previousStart);
-                  fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-                  ++k; // another field
-                  previousStart = element.length();
+                  previousStart = beginIndex + search.matchLength();
                 }
-              }
-              if (!(omit && previousStart == element.length())) {
-                final String field = element.substring(previousStart, element.length());
-                fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-              }
-              if (only_tokens && depth < Integer.MAX_VALUE) {
-                depth--; // one split ahead could have been made, see above
-                while (fields.size() > depth) {
-                  fields.removeLast(); // get rid of the remainder
+                if (!(omit && previousStart == element.length())) {
+                  fields.add(previousStart, element.length(), omits.isElementNA(i));
+                }
+                if (only_tokens && depth < Integer.MAX_VALUE) {
+                  depth--; // one split ahead could have been made, see above
+                  while (fields.size() > depth) {
+                    fields.removeLast(); // get rid of the remainder
+                  }
                 }
+                result[i] = fields.build(element);
               }
-              result[i] = new StringArrayVector(fields);
             }
           }
         }
       }
-    }
+    }.run();
 
-    return __simplify_when_required(new ListVector(result), simplify, n);
+    return __simplify_when_required(result, simplify, n);
   }
-  public static SEXP stri_split_lines(SEXP str, SEXP omit_empty) {
-    final int length = __recycling_rule(true, str, omit_empty);
+  public static SEXP stri_split_fixed(SEXP str, SEXP pattern, SEXP n, SEXP omit_empty, SEXP tokens_only, SEXP simplify, SEXP opts_fixed) {
+    final boolean only_tokens = ((AtomicVector) tokens_only).getElementAsLogical(0).toBooleanStrict();
+    final int flags = __fixed_flags(opts_fixed, false);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final int length = __recycling_rule(true, str, pattern, n, omit_empty);
     final StringVector[] result = new StringVector[length];
-    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final IntVector ns = __ensure_length(length, stri_prepare_arg_integer(n, "n"));
+    final LogicalVector omits = __ensure_length(length, stri_prepare_arg_logical(omit_empty, "omit_empty"));
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (ns.isElementNA(i)) {
+          result[i] = StringVector.valueOf(StringVector.NA);
+        } else {
+          if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+            if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+              warn(i, "empty search patterns are not supported");
+            }
+            result[i] = StringVector.valueOf(StringVector.NA);
+          } else {
+            int depth = ns.getElementAsInt(i);
+            final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
+            final String element = strings.getElementAsString(i);
+            if (element.length() <= 0) {
+              if (omits.isElementNA(i)) {
+                result[i] = StringVector.valueOf(StringVector.NA);
+              } else if (omit || depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                result[i] = StringVector.valueOf("");
+              }
+            } else {
+              if (depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                if (depth >= Integer.MAX_VALUE - 1) {
+                  throw new IllegalArgumentException("argument `" + depth + "`: value too large");
+                } else if (depth < 0) {
+                  depth = Integer.MAX_VALUE;
+                } else if (only_tokens) {
+                  depth++; // we need to do one split ahead here
+                }
+                final SplitVector.Builder fields = new SplitVector.Builder();
+                final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+                final int patternLength = searcher.length();
+                int previousStart = 0;
+                // the fields before the last end at a match, the last one holds the rest of the element
+                for (int k = 1; previousStart < element.length() && k < depth;) {
+                  final int beginIndex = searcher.indexOf(element, previousStart);
+                  if (beginIndex < 0) {
+                    break;
+                  }
+                  if (omit && previousStart == beginIndex) {
+                    // don't start any new field
+                  } else { // start a new field here
+                    fields.add(previousStart, beginIndex, omits.isElementNA(i));
+                    ++k; // another field
+                  }
+                  previousStart = beginIndex + patternLength;
+                }
+                if (!(omit && previousStart == element.length())) {
+                  fields.add(previousStart, element.length(), omits.isElementNA(i));
+                }
+                if (only_tokens && depth < Integer.MAX_VALUE) {
+                  depth--; // one split ahead could have been made, see above
+                  while (fields.size() > depth) {
+                    fields.removeLast(); // get rid of the remainder
+                  }
+                }
+                result[i] = fields.build(element);
+              }
+            }
+          }
+        }
+      }
+    }.run();
+
+    return __simplify_when_required(result, simplify, n);
+  }
+  public static SEXP stri_split_lines(SEXP str, SEXP omit_empty) {
+    final int length = __recycling_rule(true, str, omit_empty);
+    final StringVector[] result = new StringVector[length];
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final LogicalVector omits = __ensure_length(length, stri_prepare_arg_logical(omit_empty, "omit_empty"));
 
     for (int i = 0; i < length; i++) {
       if (strings.isElementNA(i)) {
         result[i] = StringVector.valueOf(StringVector.NA);
       } else {
-        final String splitter = "(?:\\r\\n)|(?!\\r\\n)[\\u0a-\\u0d\\u85\\u2028\\u2029]";
         final String element = strings.getElementAsString(i);
         final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
-        final String[] splitted = element.split(splitter);
+        final String[] splitted = LINE_SPLITTER.split(element);
         if (omit) {
           final List<String> filtered = Arrays.asList(splitted);
           filtered.removeAll(Collections.singletonList(""));
@@ -1061,14 +1948,14 @@ public class stringi {
     if (strings.isElementNA(0)) {
       return strings;
     } else {
-      final String splitter = "(?:\\r\\n)|(?!\\r\\n)[\\u0a-\\u0d\\u85\\u2028\\u2029]";
-      final String[] splitted = strings.getElementAsString(0).split(splitter);
+      final String[] splitted = LINE_SPLITTER.split(strings.getElementAsString(0));
       return new StringArrayVector(splitted);
     }
   }
   public static SEXP stri_split_regex(SEXP str, SEXP pattern, SEXP n, SEXP omit_empty, SEXP tokens_only, SEXP simplify, SEXP opts_regex) {
     final boolean only_tokens = ((AtomicVector) tokens_only).getElementAsLogical(0).toBooleanStrict();
     final int flags = __regex_flags(opts_regex);
+    final int timeLimit = __regex_time_limit(opts_regex);
     final int length = __recycling_rule(true, str, pattern, n, omit_empty);
     final StringVector[] result = new StringVector[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
@@ -1076,81 +1963,162 @@ public class stringi {
     final IntVector ns = __ensure_length(length, stri_prepare_arg_integer(n, "n"));
     final LogicalVector omits = __ensure_length(length, stri_prepare_arg_logical(omit_empty, "omit_empty"));
 
-    for (int i = 0; i < length; i++) {
-      if (ns.isElementNA(i)) {
-        result[i] = StringVector.valueOf(StringVector.NA);
-      } else {
-        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
-          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
-            Native.currentContext().warn("empty search patterns are not supported");
-          }
+    new ElementLoop<LastPattern<RegexMatcher>>(length) {
+      @Override
+      protected LastPattern<RegexMatcher> createState() {
+        return new LastPattern<RegexMatcher>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<RegexMatcher> last) {
+        if (ns.isElementNA(i)) {
           result[i] = StringVector.valueOf(StringVector.NA);
         } else {
-          int depth = ns.getElementAsInt(i);
-          final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
-          final String element = strings.getElementAsString(i);
-          if (element.length() <= 0) {
-            if (omits.isElementNA(i)) {
-              result[i] = StringVector.valueOf(StringVector.NA);
-            } else if (omit || depth == 0) {
-              result[i] = StringVector.EMPTY;
-            } else {
-              result[i] = StringVector.valueOf("");
+          if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+            if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+              warn(i, "empty search patterns are not supported");
             }
+            result[i] = StringVector.valueOf(StringVector.NA);
           } else {
-            if (depth == 0) {
-              result[i] = StringVector.EMPTY;
-            } else {
-              if (depth >= Integer.MAX_VALUE - 1) {
-                throw new IllegalArgumentException("argument `" + depth + "`: value too large");
-              } else if (depth < 0) {
-                depth = Integer.MAX_VALUE;
-              } else if (only_tokens) {
-                depth++; // we need to do one split ahead here
+            int depth = ns.getElementAsInt(i);
+            final boolean omit = omits.getElementAsLogical(i).toBooleanStrict();
+            final String element = strings.getElementAsString(i);
+            if (element.length() <= 0) {
+              if (omits.isElementNA(i)) {
+                result[i] = StringVector.valueOf(StringVector.NA);
+              } else if (omit || depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                result[i] = StringVector.valueOf("");
               }
-              final LinkedList<String> fields = new LinkedList<String>();
-              final Matcher matcher = Pattern.compile(__normalize_binary_properties(patterns.getElementAsString(i)), flags).matcher(element);
-              int previousStart = 0;
-              for (int k = 0; k < depth && matcher.find();) {
-                final int beginIndex = matcher.start();
-                final int endIndex = matcher.end();
-                if (omit && previousStart == beginIndex) {
-                  // don't start any new field
-                } else { // start a new field here
-                  final String field = element.substring(previousStart, beginIndex);
-                  fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-                  ++k; // another field
+            } else {
+              if (depth == 0) {
+                result[i] = StringVector.EMPTY;
+              } else {
+                if (depth >= Integer.MAX_VALUE - 1) {
+                  throw new IllegalArgumentException("argument `" + depth + "`: value too large");
+                } else if (depth < 0) {
+                  depth = Integer.MAX_VALUE;
+                } else if (only_tokens) {
+                  depth++; // we need to do one split ahead here
                 }
-                previousStart = endIndex;
-              }
-              if (!(omit && previousStart == element.length())) {
-                final String field = element.substring(previousStart, element.length());
-                fields.add(("".equals(field) && omits.isElementNA(i)) ? StringVector.NA : field);
-              }
-              if (only_tokens && depth < Integer.MAX_VALUE) {
-                depth--; // one split ahead could have been made, see above
-                while (fields.size() > depth) {
-                  fields.removeLast(); // get rid of the remainder
+                final SplitVector.Builder fields = new SplitVector.Builder();
+                final String separatorPattern = patterns.getElementAsString(i);
+                if (!separatorPattern.equals(last.pattern)) {
+                  last.pattern = separatorPattern;
+                  last.matcher = __compile_regex(separatorPattern, flags).matcher(element, timeLimit);
+                } else {
+                  last.matcher.reset(element);
+                }
+                int previousStart = 0;
+                // the fields before the last end at a match, the last one holds the rest of the element
+                for (int k = 1; k < depth && last.matcher.find();) {
+                  final int beginIndex = last.matcher.start();
+                  final int endIndex = last.matcher.end();
+                  if (omit && previousStart == beginIndex) {
+                    // don't start any new field
+                  } else { // start a new field here
+                    fields.add(previousStart, beginIndex, omits.isElementNA(i));
+                    ++k; // another field
+                  }
+                  previousStart = endIndex;
+                }
+                if (!(omit && previousStart == element.length())) {
+                  fields.add(previousStart, element.length(), omits.isElementNA(i));
+                }
+                if (only_tokens && depth < Integer.MAX_VALUE) {
+                  depth--; // one split ahead could have been made, see above
+                  while (fields.size() > depth) {
+                    fields.removeLast(); // get rid of the remainder
+                  }
                 }
+                result[i] = fields.build(element);
               }
-              result[i] = new StringArrayVector(fields);
             }
           }
         }
       }
-    }
+    }.run();
 
-    return __simplify_when_required(new ListVector(result), simplify, n);
+    return __simplify_when_required(result, simplify, n);
   }
   public static SEXP stri_startswith_charclass(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
-  public static SEXP stri_startswith_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
+  public static SEXP stri_startswith_coll(SEXP str, SEXP pattern, SEXP from, SEXP opts_collator) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern, from);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final IntVector froms = __ensure_length(length, stri_prepare_arg_integer(from, "from"));
+    final Logical[] result = new Logical[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || froms.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = Logical.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          final int start = froms.getElementAsInt(i) > 0
+              ? __utf16_index(element, froms.getElementAsInt(i) - 1, false)
+              : __utf16_index(element, -froms.getElementAsInt(i), true);
+          result[i] = Logical.valueOf(search.following(start) == start);
+        }
+      }
+    }.run();
+
+    return new LogicalArrayVector(result);
+  }
   public static SEXP stri_startswith_fixed(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_stats_general(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_stats_latex(SEXP s1) { throw new EvalException("TODO"); }
   public static SEXP stri_sub(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
   public static SEXP stri_sub_replacement(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5, SEXP s6) { throw new EvalException("TODO"); }
   public static SEXP stri_subset_charclass(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
-  public static SEXP stri_subset_coll(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
+  public static SEXP stri_subset_coll(SEXP str, SEXP pattern, SEXP omit_na, SEXP negate, SEXP opts_collator) {
+    final boolean is_omitting_na = ((AtomicVector) omit_na).getElementAsLogical(0).toBooleanStrict();
+    final boolean is_negating = ((AtomicVector) negate).getElementAsLogical(0).toBooleanStrict();
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final Logical[] detected = new Logical[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          detected[i] = Logical.NA;
+        } else {
+          final boolean found = search.reset(patterns.getElementAsString(i), strings.getElementAsString(i)).first() != CollSearch.DONE;
+          detected[i] = Logical.valueOf(is_negating ? !found : found);
+        }
+      }
+    }.run();
+
+    final StringVector.Builder result = StringVector.newBuilder();
+    for (int i = 0; i < length; i++) {
+      if (detected[i] == Logical.TRUE) {
+        result.add(strings.getElementAsString(i));
+      } else if (detected[i] == Logical.NA && !is_omitting_na) {
+        result.addNA();
+      }
+    }
+    return result.build();
+  }
   public static SEXP stri_subset_fixed(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
   public static SEXP stri_subset_regex(SEXP s1, SEXP s2, SEXP s3, SEXP s4, SEXP s5) { throw new EvalException("TODO"); }
   public static SEXP stri_subset_charclass_replacement(SEXP s1, SEXP s2, SEXP s3, SEXP s4) { throw new EvalException("TODO"); }
@@ -1167,36 +2135,115 @@ public class stringi {
   public static SEXP stri_timezone_info(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_trans_char(SEXP s1, SEXP s2, SEXP s3) { throw new EvalException("TODO"); }
   public static SEXP stri_trans_isnfc(SEXP str) {
-    return __trans_isnf(str, Normalizer.Form.NFC);
+    return __trans_isnf(str, Normalizer2.getNFCInstance());
   }
   public static SEXP stri_trans_isnfd(SEXP str) {
-    return __trans_isnf(str, Normalizer.Form.NFD);
+    return __trans_isnf(str, Normalizer2.getNFDInstance());
   }
   public static SEXP stri_trans_isnfkc(SEXP str) {
-    return __trans_isnf(str, Normalizer.Form.NFKC);
+    return __trans_isnf(str, Normalizer2.getNFKCInstance());
   }
   public static SEXP stri_trans_isnfkd(SEXP str) {
-    return __trans_isnf(str, Normalizer.Form.NFKD);
+    return __trans_isnf(str, Normalizer2.getNFKDInstance());
+  }
+  public static SEXP stri_trans_isnfkc_casefold(SEXP str) {
+    return __trans_isnf(str, Normalizer2.getNFKCCasefoldInstance());
+  }
+  public static SEXP stri_trans_general(SEXP str, SEXP id) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final Transliteration transliteration = Transliteration.of(__prepare_arg_string_1(id, "id"));
+    final int length = strings.length();
+    final String[] result = new String[length];
+
+    new ElementLoop<Transliteration.Worker>(length) {
+      @Override
+      protected Transliteration.Worker createState() {
+        return transliteration.worker();
+      }
+      @Override
+      protected void compute(int i, Transliteration.Worker worker) {
+        if (strings.isElementNA(i)) {
+          result[i] = StringVector.NA;
+        } else {
+          result[i] = worker.transliterate(strings.getElementAsString(i));
+        }
+      }
+    }.run();
+
+    return new StringArrayVector(result);
+  }
+  public static SEXP stri_trans_list() {
+    return Transliteration.availableIds();
   }
-  public static SEXP stri_trans_isnfkc_casefold(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_trans_general(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_trans_list(SEXP s1, SEXP s0) { throw new EvalException("TODO"); }
   public static SEXP stri_trans_nfc(SEXP str) {
-    return __trans_nf(str, Normalizer.Form.NFC);
+    return __trans_nf(str, Normalizer2.getNFCInstance());
   }
   public static SEXP stri_trans_nfd(SEXP str) {
-    return __trans_nf(str, Normalizer.Form.NFD);
+    return __trans_nf(str, Normalizer2.getNFDInstance());
   }
   public static SEXP stri_trans_nfkc(SEXP str) {
-    return __trans_nf(str, Normalizer.Form.NFKC);
+    return __trans_nf(str, Normalizer2.getNFKCInstance());
   }
   public static SEXP stri_trans_nfkd(SEXP str) {
-    return __trans_nf(str, Normalizer.Form.NFKD);
+    return __trans_nf(str, Normalizer2.getNFKDInstance());
+  }
+  public static SEXP stri_trans_nfkc_casefold(SEXP str) {
+    return __trans_nf(str, Normalizer2.getNFKCCasefoldInstance());
+  }
+  public static SEXP stri_trans_totitle(SEXP str, SEXP opts_brkiter) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final BreakIterator prototype = __open_break_iterator(opts_brkiter, "word");
+    final CaseMapping mapping = CaseMapping.of(__break_iterator_locale(opts_brkiter));
+    final int length = strings.length();
+    final String[] result = new String[length];
+
+    new ElementLoop<BreakIterator>(length) {
+      @Override
+      protected BreakIterator createState() {
+        return (BreakIterator) prototype.clone();
+      }
+      @Override
+      protected void compute(int i, BreakIterator brkiter) {
+        if (strings.isElementNA(i)) {
+          result[i] = StringVector.NA;
+        } else {
+          result[i] = mapping.toTitle(strings.getElementAsString(i), brkiter);
+        }
+      }
+    }.run();
+
+    return new StringArrayVector(result);
+  }
+  public static SEXP stri_trans_tolower(SEXP str, SEXP locale) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final CaseMapping mapping = CaseMapping.of(__prepare_arg_locale(locale, "locale"));
+
+    return new DeferredStringVector(strings.length()) {
+      @Override
+      protected String compute(int i) {
+        if (strings.isElementNA(i)) {
+          return StringVector.NA;
+        } else {
+          return mapping.toLower(strings.getElementAsString(i));
+        }
+      }
+    }.deferOrCompute();
+  }
+  public static SEXP stri_trans_toupper(SEXP str, SEXP locale) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final CaseMapping mapping = CaseMapping.of(__prepare_arg_locale(locale, "locale"));
+
+    return new DeferredStringVector(strings.length()) {
+      @Override
+      protected String compute(int i) {
+        if (strings.isElementNA(i)) {
+          return StringVector.NA;
+        } else {
+          return mapping.toUpper(strings.getElementAsString(i));
+        }
+      }
+    }.deferOrCompute();
   }
-  public static SEXP stri_trans_nfkc_casefold(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_trans_totitle(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_trans_tolower(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_trans_toupper(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
   public static SEXP stri_trim_both(SEXP str, SEXP pattern) {
     return __trim_left_right(str, pattern, TrimOption.BOTH);
   }
@@ -1207,24 +2254,127 @@ public class stringi {
     return __trim_left_right(str, pattern, TrimOption.TRAILING);
   }
   public static SEXP stri_unescape_unicode(SEXP s1) { throw new EvalException("TODO"); }
-  public static SEXP stri_unique(SEXP s1, SEXP s2) { throw new EvalException("TODO"); }
-  public static SEXP stri_width(SEXP str) {
+  public static SEXP stri_unique(SEXP str, SEXP opts_collator) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
     final int length = strings.length();
-    final int[] result = new int[length];
+    final IndexSet uniqueset = __string_index_set(strings, __open_collator(opts_collator), true);
+    final List<String> result = new ArrayList<String>();
 
+    boolean was_na = false;
     for (int i = 0; i < length; i++) {
       if (strings.isElementNA(i)) {
-        result[i] = IntVector.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        result[i] = __width_string(element);
+        if (!was_na) {
+          was_na = true;
+          result.add(StringVector.NA);
+        }
+      } else if (uniqueset.add(i)) {
+        result.add(strings.getElementAsString(i));
       }
     }
 
-    return new IntArrayVector(result);
+    return new StringArrayVector(result);
+  }
+  public static SEXP stri_width(SEXP str) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final boolean is_printable_ascii = __char_range(strings) == CharRange.ASCII_PRINTABLE;
+
+    return new DeferredIntVector(strings.length()) {
+      @Override
+      protected int compute(int i) {
+        if (strings.isElementNA(i)) {
+          return IntVector.NA;
+        } else if (is_printable_ascii) {
+          return strings.getElementAsString(i).length();
+        } else {
+          return CharWidth.of(strings.getElementAsString(i));
+        }
+      }
+    }.deferOrCompute();
   }
   public static SEXP stri_wrap(SEXP s1) { throw new EvalException("TODO"); }
+  public static SEXP stri_write_lines(SEXP str, SEXP fname, SEXP encoding, SEXP sep) {
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final File file = new File(__prepare_arg_string_1(fname, "fname"));
+    final Charset charset = __prepare_arg_charset(encoding, "encoding");
+    final CharBuffer separator = CharBuffer.wrap(__prepare_arg_string_1(sep, "sep"));
+    final CharsetEncoder encoder = charset.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    try {
+      final FileOutputStream output = new FileOutputStream(file);
+      try {
+        final FileChannel channel = output.getChannel();
+        for (int i = 0; i < strings.length(); i++) {
+          // NAs are written as "NA", as by writeLines
+          __encode_to_channel(CharBuffer.wrap(strings.isElementNA(i) ? "NA" : strings.getElementAsString(i)),
+              encoder, buffer, channel, false);
+          separator.rewind();
+          __encode_to_channel(separator, encoder, buffer, channel, false);
+        }
+        __encode_to_channel(CharBuffer.allocate(0), encoder, buffer, channel, true);
+        __drain_to_channel(buffer, channel);
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      throw new EvalException("cannot write file `" + file + "`: " + e.getMessage(), e);
+    }
+    return Null.INSTANCE;
+  }
+
+  /**
+   * Break iterator options: a type and a locale, or a rule string (with a null locale)
+   */
+  private static final class BreakIteratorKey {
+    private final String type;
+    private final Locale locale;
+    BreakIteratorKey(String type, Locale locale) {
+      this.type = type;
+      this.locale = locale;
+    }
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BreakIteratorKey)) {
+        return false;
+      }
+      final BreakIteratorKey other = (BreakIteratorKey) obj;
+      return type.equals(other.type) && (locale == null ? other.locale == null : locale.equals(other.locale));
+    }
+    @Override
+    public int hashCode() {
+      return 31 * type.hashCode() + (locale == null ? 0 : locale.hashCode());
+    }
+  }
+
+  private static final class PatternKey {
+    private final String pattern;
+    private final int flags;
+    PatternKey(String pattern, int flags) {
+      this.pattern = pattern;
+      this.flags = flags;
+    }
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PatternKey)) {
+        return false;
+      }
+      final PatternKey other = (PatternKey) obj;
+      return flags == other.flags && pattern.equals(other.pattern);
+    }
+    @Override
+    public int hashCode() {
+      return 31 * pattern.hashCode() + flags;
+    }
+  }
+
+  /**
+   * Per-worker memo of the last pattern seen and the matcher built from it
+   */
+  private static final class LastPattern<T> {
+    private String pattern;
+    private T matcher;
+  }
 
   private enum ReplaceType {
     ALL, FIRST, LAST;
@@ -1309,7 +2459,7 @@ public class stringi {
         final String preservedPattern = patterns.getElementAsString(i);
         if (!preservedPattern.equals(lastPattern)) {
           lastPattern = preservedPattern;
-          matcher = new UnicodeSetSpanner(new UnicodeSet(preservedPattern));
+          matcher = new UnicodeSetSpanner(__open_charclass(preservedPattern));
         }
         result[i] = matcher.trim(element, side, UnicodeSet.SpanCondition.NOT_CONTAINED).toString();
     	  }
@@ -1338,7 +2488,7 @@ public class stringi {
           }
         } else if (allow_overlap && "overlap".equals(name)) {
           if (options.getElementAsLogical(i).toBooleanStrict()) {
-            flags |= Pattern.COMMENTS;
+            flags |= FixedSearch.OVERLAP;
           }
         } else {
           Native.currentContext().warn("incorrect opts_fixed setting: `" + name + "`. ignoring");
@@ -1387,6 +2537,20 @@ public class stringi {
           if (options.getElementAsLogical(i).toBooleanStrict()) {
             flags |= Pattern.UNIX_LINES;
           }
+        } else if ("linear_time".equals(name)) {
+          if (options.getElementAsLogical(i).toBooleanStrict()) {
+            flags |= RegexPattern.LINEAR_TIME;
+          }
+        } else if ("time_limit".equals(name)) {
+          // see __regex_time_limit()
+        } else if ("stack_limit".equals(name)) {
+          // the backtracking of java.util.regex is bounded by the Java stack rather than by
+          // a heap buffer, so a limit cannot be honoured; running out of it is reported as
+          // ICU reports an overflow
+          if (options.isElementNA(i) || options.getElementAsInt(i) != 0) {
+            Native.currentContext().warn("unsupported opts_regex setting: `stack_limit`. "
+                + "matches fail when they exhaust the Java stack, whatever the limit. ignoring");
+          }
         } else if ("uword".equals(name)) {
           // in Java regex word boundaries always conform to the Unicode definition
         } else if ("error_on_unknown_escapes".equals(name)) {
@@ -1400,6 +2564,23 @@ public class stringi {
 
     return flags;
   }
+  /**
+   * @return the time_limit setting of opts_regex, in milliseconds, or 0 for no limit
+   */
+  private static int __regex_time_limit(SEXP opts_regex) {
+    if (!(opts_regex instanceof ListVector)) {
+      return 0;
+    }
+    final ListVector options = (ListVector) opts_regex;
+    final int index = options.getIndexByName("time_limit");
+    if (index < 0) {
+      return 0;
+    }
+    if (options.isElementNA(index) || options.getElementAsInt(index) < 0) {
+      throw new EvalException("incorrect opts_regex setting: `time_limit`. expected a non-negative integer");
+    }
+    return options.getElementAsInt(index);
+  }
   private static String __normalize_binary_properties(String pattern) {
     if (null == pattern) {
       return null;
@@ -1425,17 +2606,60 @@ public class stringi {
       // @formatter:on
     }
   }
-  private static SEXP __simplify_when_required(SEXP resultSexp, SEXP simplify, SEXP n) {
+  /**
+   * Fetch a compiled pattern from the shared regex cache, compiling it on a miss
+   *
+   * @param pattern
+   *          pattern as given by the user, before translating binary property names
+   * @param flags
+   *          flags as returned by __regex_flags
+   * @return compiled pattern, safe to share between threads
+   */
+  private static RegexPattern __compile_regex(String pattern, int flags) {
+    final PatternKey key = new PatternKey(pattern, flags);
+    RegexPattern compiled = REGEX_CACHE.getIfPresent(key);
+    if (compiled == null) {
+      compiled = RegexPattern.compile(__normalize_binary_properties(pattern), flags);
+      REGEX_CACHE.put(key, compiled);
+    }
+    return compiled;
+  }
+  /**
+   * @return the fields as a list, or as a character matrix with one row per string
+   *         if simplify is TRUE (padded with "") or NA (padded with NA)
+   */
+  private static SEXP __simplify_when_required(StringVector[] fields, SEXP simplify, SEXP n) {
     final Logical first_simplify = ((AtomicVector) simplify).getElementAsLogical(0);
     if (first_simplify.equals(Logical.FALSE)) {
-      return resultSexp;
+      return new ListVector(fields);
     } else { // NA or TRUE
       int required_depth = 0;
       for (int i = 0; i < n.length(); i++) {
         required_depth = Math.max(required_depth, ((AtomicVector) n).getElementAsInt(i));
       }
+      final int length = fields.length;
+      for (int i = 0; i < length; i++) {
+        required_depth = Math.max(required_depth, fields[i].length());
+      }
+      if ((long) length * required_depth > StringAssembler.MAX_LENGTH) {
+        throw new EvalException("result matrix would have more than " + StringAssembler.MAX_LENGTH + " elements");
+      }
+      // column-major, straight from the fields
       final String filler = first_simplify.equals(Logical.NA) ? StringVector.NA : "";
-      return stri_list2matrix(resultSexp, LogicalVector.valueOf(true), StringVector.valueOf(filler), IntVector.valueOf(required_depth));
+      final String[] matrix = new String[length * required_depth];
+      for (int i = 0; i < length; i++) {
+        final StringVector row = fields[i];
+        final int row_length = row.length();
+        for (int j = 0; j < row_length; j++) {
+          matrix[i + j * length] = row.getElementAsString(j);
+        }
+        for (int j = row_length; j < required_depth; j++) {
+          matrix[i + j * length] = filler;
+        }
+      }
+      final StringVector result = new StringArrayVector(matrix);
+      result.setAttribute(Symbols.DIM, new IntArrayVector(length, required_depth));
+      return result;
     }
   }
   private static SEXP __string_vector_NA(final int length) {
@@ -1445,219 +2669,564 @@ public class stringi {
     }
     return builder.build();
   }
-  private static SEXP __replace_firstlast_charclass(SEXP str, SEXP pattern, SEXP replacement, ReplaceType replaces) {
+  private static SEXP __replace_firstlast_charclass(SEXP str, SEXP pattern, SEXP replacement, final ReplaceType replaces) {
     final int length = __recycling_rule(true, str, pattern, replacement);
     final String[] result = new String[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
     final StringVector replacements = __ensure_length(length, stri_prepare_arg_string(replacement, "replacement"));
 
-    String lastPattern = null;
-    UnicodeSet matcher = null;
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
-        result[i] = StringVector.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        final String separatorPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-        if (!separatorPattern.equals(lastPattern)) {
-          lastPattern = separatorPattern;
-          matcher = new UnicodeSet(separatorPattern);
-        }
-        int nomatch = -1;
-        int cut = -1;
-        if (replaces.isFirst()) {
-          nomatch = element.length();
-          cut = matcher.span(element, UnicodeSet.SpanCondition.NOT_CONTAINED);
-        } else if (replaces.isLast()) {
-          nomatch = 0;
-          cut = matcher.spanBack(element, UnicodeSet.SpanCondition.NOT_CONTAINED);
-        }
-        if (cut == nomatch) {
-          result[i] = element;
+    new ElementLoop<LastPattern<UnicodeSet>>(length) {
+      @Override
+      protected LastPattern<UnicodeSet> createState() {
+        return new LastPattern<UnicodeSet>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<UnicodeSet> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
+          result[i] = StringVector.NA;
         } else {
-          result[i] = element.substring(0, cut) + replacements.getElementAsString(i) + element.substring(cut + 1);
+          final String element = strings.getElementAsString(i);
+          final UnicodeSet charclass = __charclass(last, patterns.getElementAsString(i));
+          // [start, end) is the matched code point
+          int start;
+          int end;
+          if (replaces.isLast()) {
+            end = charclass.spanBack(element, UnicodeSet.SpanCondition.NOT_CONTAINED);
+            start = (end > 0) ? end - Character.charCount(element.codePointBefore(end)) : -1;
+          } else {
+            start = charclass.span(element, UnicodeSet.SpanCondition.NOT_CONTAINED);
+            end = (start < element.length()) ? start + Character.charCount(element.codePointAt(start)) : -1;
+          }
+          if (start < 0 || end < 0) {
+            result[i] = element;
+          } else {
+            result[i] = element.substring(0, start) + replacements.getElementAsString(i) + element.substring(end);
+          }
         }
       }
-    }
+    }.run();
 
     return new StringArrayVector(result);
   }
-  private static SEXP __replace_all_charclass_vectorized(SEXP str, SEXP pattern, SEXP replacement, boolean is_merging) {
+  /**
+   * Replace every code point of element in charclass, or every run of them if merging,
+   * in a single pass; replacement is taken literally
+   */
+  private static String __replace_all_charclass(String element, UnicodeSet charclass, String replacement, boolean is_merging) {
+    final int length = element.length();
+    int start = charclass.span(element, 0, UnicodeSet.SpanCondition.NOT_CONTAINED);
+    if (start >= length) {
+      return element;
+    }
+    final StringBuilder replaced = new StringBuilder(length + replacement.length());
+    int previousEnd = 0;
+    while (start < length) {
+      final int end = charclass.span(element, start, UnicodeSet.SpanCondition.CONTAINED);
+      replaced.append(element, previousEnd, start);
+      if (is_merging) {
+        replaced.append(replacement);
+      } else {
+        for (int k = element.codePointCount(start, end); k > 0; k--) {
+          replaced.append(replacement);
+        }
+      }
+      previousEnd = end;
+      start = charclass.span(element, end, UnicodeSet.SpanCondition.NOT_CONTAINED);
+    }
+    replaced.append(element, previousEnd, length);
+    return replaced.toString();
+  }
+  /**
+   * Fetch a frozen character class from the shared cache, parsing it on a miss
+   */
+  private static UnicodeSet __open_charclass(String pattern) {
+    UnicodeSet charclass = CHARCLASS_CACHE.getIfPresent(pattern);
+    if (charclass == null) {
+      charclass = new UnicodeSet(pattern).freeze();
+      CHARCLASS_CACHE.put(pattern, charclass);
+    }
+    return charclass;
+  }
+  /**
+   * Reuse the character class from the previous element if its pattern is unchanged
+   */
+  private static UnicodeSet __charclass(LastPattern<UnicodeSet> last, String pattern) {
+    if (!pattern.equals(last.pattern)) {
+      last.pattern = pattern;
+      last.matcher = __open_charclass(pattern);
+    }
+    return last.matcher;
+  }
+  private static SEXP __replace_all_charclass_vectorized(SEXP str, SEXP pattern, SEXP replacement, final boolean is_merging) {
     final int length = __recycling_rule(true, str, pattern, replacement);
     final String[] result = new String[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
     final StringVector replacements = __ensure_length(length, stri_prepare_arg_string(replacement, "replacement"));
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
-        result[i] = StringVector.NA;
-      } else {
-        final String patterni = (is_merging) ? "(?:" + patterns.getElementAsString(i) + ")+" : patterns.getElementAsString(i);
-        result[i] = strings.getElementAsString(i).replaceAll(__normalize_binary_properties(patterni), replacements.getElementAsString(i));
+    new ElementLoop<LastPattern<UnicodeSet>>(length) {
+      @Override
+      protected LastPattern<UnicodeSet> createState() {
+        return new LastPattern<UnicodeSet>();
       }
-    }
+      @Override
+      protected void compute(int i, LastPattern<UnicodeSet> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
+          result[i] = StringVector.NA;
+        } else {
+          final UnicodeSet charclass = __charclass(last, patterns.getElementAsString(i));
+          result[i] = __replace_all_charclass(strings.getElementAsString(i), charclass, replacements.getElementAsString(i), is_merging);
+        }
+      }
+    }.run();
 
     return new StringArrayVector(result);
   }
-  private static SEXP __replace_all_fixed_vectorized(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_fixed, ReplaceType replaces) {
+  private static SEXP __replace_all_fixed_vectorized(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_fixed, final ReplaceType replaces) {
     final int flags = __fixed_flags(opts_fixed, false);
     final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
     final int length = __recycling_rule(true, str, pattern, replacement);
     final String[] result = new String[length];
-    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
     final StringVector replacements = __ensure_length(length, stri_prepare_arg_string(replacement, "replacement"));
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
-        if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
-          Native.currentContext().warn("empty search patterns are not supported");
-        }
-        result[i] = StringVector.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        if (element.length() <= 0) {
-          result[i] = "";
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = StringVector.NA;
         } else {
-          final String separatorPattern = patterns.getElementAsString(i);
-          final String patternNormalized = is_insensitive ? separatorPattern.toUpperCase() : separatorPattern;
-          final String elementNormalized = is_insensitive ? element.toUpperCase() : element;
-          if (replacements.isElementNA(i)) {
-            if (-1 < elementNormalized.indexOf(patternNormalized)) {
-              result[i] = StringVector.NA;
-            } else {
-              result[i] = element;
-            }
+          final String element = strings.getElementAsString(i);
+          if (element.length() <= 0) {
+            result[i] = "";
           } else {
-            final String replacement_i = replacements.getElementAsString(i);
-            final int patternLength = separatorPattern.length();
-            final StringBuffer replaced = new StringBuffer();
-            int previousStart = 0;
-            int beginIndex = (replaces.isLast()) ? elementNormalized.lastIndexOf(patternNormalized) : elementNormalized.indexOf(patternNormalized);
-            while (replaces.isAll() && beginIndex != -1) {
-              replaced.append(element.substring(previousStart, beginIndex));
-              replaced.append(replacement_i);
-              previousStart = beginIndex + patternLength;
-              beginIndex = elementNormalized.indexOf(patternNormalized, previousStart);
+            final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+            if (replacements.isElementNA(i)) {
+              if (-1 < searcher.indexOf(element, 0)) {
+                result[i] = StringVector.NA;
+              } else {
+                result[i] = element;
+              }
+            } else if (replaces.isAll()) {
+              result[i] = __replace_all_fixed(element, searcher, replacements.getElementAsString(i));
+            } else {
+              final int beginIndex = (replaces.isLast()) ? searcher.lastIndexOf(element) : searcher.indexOf(element, 0);
+              if (beginIndex < 0) {
+                result[i] = element;
+              } else {
+                result[i] = element.substring(0, beginIndex) + replacements.getElementAsString(i) + element.substring(beginIndex + searcher.length());
+              }
             }
-            replaced.append(element.substring(previousStart));
-            result[i] = replaced.toString();
           }
         }
       }
+    }.run();
+
+    return new StringArrayVector(result);
+  }
+  /**
+   * Reuse the searcher from the previous element if its pattern is unchanged
+   */
+  private static FixedSearch __fixed_searcher(LastPattern<FixedSearch> last, String pattern, boolean is_insensitive, boolean is_ascii) {
+    if (!pattern.equals(last.pattern)) {
+      last.pattern = pattern;
+      last.matcher = new FixedSearch(pattern, is_insensitive, is_ascii);
     }
+    return last.matcher;
+  }
+  private static SEXP __extract_first_or_last_fixed(SEXP str, SEXP pattern, SEXP opts_fixed, final boolean is_last) {
+    final int flags = __fixed_flags(opts_fixed, false);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_ascii = is_insensitive && CharRange.of(prepared).isAscii();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final String[] result = new String[length];
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = StringVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+          final int start = is_last ? searcher.lastIndexOf(element) : searcher.indexOf(element, 0);
+          result[i] = (start < 0) ? StringVector.NA : element.substring(start, start + searcher.length());
+        }
+      }
+    }.run();
 
     return new StringArrayVector(result);
   }
-  private static SEXP __replace_all_regex_vectorized(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_regex, ReplaceType replaces) {
-    final int flags = __regex_flags(opts_regex);
+  private static SEXP __locate_first_or_last_fixed(SEXP str, SEXP pattern, SEXP opts_fixed, final boolean is_last) {
+    final int flags = __fixed_flags(opts_fixed, false);
+    final boolean is_insensitive = (flags & Pattern.CASE_INSENSITIVE) > 0;
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final CharRange range = CharRange.of(prepared);
+    final boolean is_ascii = is_insensitive && range.isAscii();
+    final boolean is_bmp = range.isBmp();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final int[] bounds = new int[2 * length];
+
+    new ElementLoop<LastPattern<FixedSearch>>(length) {
+      @Override
+      protected LastPattern<FixedSearch> createState() {
+        return new LastPattern<FixedSearch>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<FixedSearch> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          bounds[i] = IntVector.NA;
+          bounds[i + length] = IntVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final FixedSearch searcher = __fixed_searcher(last, patterns.getElementAsString(i), is_insensitive, is_ascii);
+          final int start = is_last ? searcher.lastIndexOf(element) : searcher.indexOf(element, 0);
+          if (start < 0) {
+            bounds[i] = IntVector.NA;
+            bounds[i + length] = IntVector.NA;
+          } else {
+            final int end = start + searcher.length();
+            bounds[i] = (is_bmp ? start : element.codePointCount(0, start)) + 1;
+            bounds[i + length] = is_bmp ? end : element.codePointCount(0, end);
+          }
+        }
+      }
+    }.run();
+
+    return __locate_matrix(bounds, length);
+  }
+  /**
+   * @param bounds
+   *          1-based starts then ends of the matches, in code points, i.e. the n x 2 matrix in column-major order
+   * @return the matrix, with its columns named as by stri_locate_*()
+   */
+  private static IntVector __locate_matrix(int[] bounds, int n) {
+    final IntVector matrix = new IntArrayVector(bounds);
+    matrix.setAttribute(Symbols.DIM, new IntArrayVector(n, 2));
+    matrix.setAttribute(Symbols.DIMNAMES, new ListVector(Null.INSTANCE, new StringArrayVector("start", "end")));
+    return matrix;
+  }
+  private static SEXP __extract_first_or_last_coll(SEXP str, SEXP pattern, SEXP opts_collator, final boolean is_last) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final String[] result = new String[length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          result[i] = StringVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          final int start = is_last ? search.last() : search.first();
+          result[i] = (start == CollSearch.DONE) ? StringVector.NA : element.substring(start, start + search.matchLength());
+        }
+      }
+    }.run();
+
+    return new StringArrayVector(result);
+  }
+  private static SEXP __locate_first_or_last_coll(SEXP str, SEXP pattern, SEXP opts_collator, final boolean is_last) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
+    final int length = __recycling_rule(true, str, pattern);
+    final StringVector prepared = stri_prepare_arg_string(str, "str");
+    final boolean is_bmp = CharRange.of(prepared).isBmp();
+    final StringVector strings = __ensure_length(length, prepared);
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final int[] bounds = new int[2 * length];
+
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
+          }
+          bounds[i] = IntVector.NA;
+          bounds[i + length] = IntVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          final int start = is_last ? search.last() : search.first();
+          if (start == CollSearch.DONE) {
+            bounds[i] = IntVector.NA;
+            bounds[i + length] = IntVector.NA;
+          } else {
+            final int end = start + search.matchLength();
+            bounds[i] = (is_bmp ? start : element.codePointCount(0, start)) + 1;
+            bounds[i + length] = is_bmp ? end : element.codePointCount(0, end);
+          }
+        }
+      }
+    }.run();
+
+    return __locate_matrix(bounds, length);
+  }
+  private static SEXP __replace_all_coll_vectorized(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_collator, final ReplaceType replaces) {
+    final RuleBasedCollator collator = __open_search_collator(opts_collator);
     final int length = __recycling_rule(true, str, pattern, replacement);
     final String[] result = new String[length];
     final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
     final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
     final StringVector replacements = __ensure_length(length, stri_prepare_arg_string(replacement, "replacement"));
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
-        result[i] = StringVector.NA;
-      } else {
-        final String element = strings.getElementAsString(i);
-        final String appliedPattern = __normalize_binary_properties(patterns.getElementAsString(i));
-        final String replacement_i = replacements.getElementAsString(i);
-        final Matcher matcher = Pattern.compile(appliedPattern, flags).matcher(element);
-        if (replaces.isAll()) {
-          result[i] = matcher.replaceAll(replacement_i);
-        } else if (replaces.isFirst()) {
-          result[i] = matcher.replaceFirst(replacement_i);
-        } else if (replaces.isLast()) {
-          int start = -1;
-          int end = -1;
-          while (matcher.find()) {
-            start = matcher.start();
-            end = matcher.end();
+    new ElementLoop<CollSearch>(length) {
+      @Override
+      protected CollSearch createState() {
+        return new CollSearch(collator);
+      }
+      @Override
+      protected void compute(int i, CollSearch search) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || patterns.getElementAsString(i).length() <= 0) {
+          if (!patterns.isElementNA(i) && patterns.getElementAsString(i).length() <= 0) {
+            warn(i, "empty search patterns are not supported");
           }
-          if (start < 0 || end < 0) {
-            result[i] = element;
+          result[i] = StringVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          search.reset(patterns.getElementAsString(i), element);
+          if (replacements.isElementNA(i)) {
+            result[i] = (search.first() != CollSearch.DONE) ? StringVector.NA : element;
+          } else if (replaces.isAll()) {
+            result[i] = __replace_all_coll(element, search, replacements.getElementAsString(i));
           } else {
-            result[i] = element.substring(0, start) + replacement_i + element.substring(end);
+            final int beginIndex = (replaces.isLast()) ? search.last() : search.first();
+            if (beginIndex == CollSearch.DONE) {
+              result[i] = element;
+            } else {
+              result[i] = element.substring(0, beginIndex) + replacements.getElementAsString(i) + element.substring(beginIndex + search.matchLength());
+            }
           }
         }
       }
-    }
+    }.run();
 
     return new StringArrayVector(result);
   }
-  private static int __width_string(String element) {
-    int width = 0;
-    for (int j = 0; j < element.length(); /* j + charCount */) {
-      final int cp = element.codePointAt(j);
-      width += __width_char(cp);
-      j += Character.charCount(cp);
-    }
-    return width;
+  /**
+   * @return element with every match of the search, which was reset to it, replaced
+   */
+  private static String __replace_all_coll(String element, CollSearch search, String replacement) {
+    int beginIndex = search.first();
+    if (beginIndex == CollSearch.DONE) {
+      return element;
+    }
+    final StringBuilder replaced = new StringBuilder(element.length() + replacement.length());
+    int previousEnd = 0;
+    while (beginIndex != CollSearch.DONE) {
+      replaced.append(element, previousEnd, beginIndex);
+      replaced.append(replacement);
+      previousEnd = beginIndex + search.matchLength();
+      beginIndex = search.next();
+    }
+    replaced.append(element, previousEnd, element.length());
+    return replaced.toString();
   }
-  private static int __width_char(int codePoint) {
-    if (codePoint == 0x00AD) {
-      return 1; /* SOFT HYPHEN */
-    }
-    if (codePoint == 0x200B) {
-      return 0; /* ZERO WIDTH SPACE */
+  /**
+   * @return the UTF-16 index in s after its first n code points, or (if fromEnd) before
+   *         its last n code points, within the bounds of s
+   */
+  private static int __utf16_index(String s, int n, boolean fromEnd) {
+    if (fromEnd) {
+      int index = s.length();
+      for (int k = 0; k < n && index > 0; k++) {
+        index -= Character.charCount(s.codePointBefore(index));
+      }
+      return index;
+    } else {
+      int index = 0;
+      for (int k = 0; k < n && index < s.length(); k++) {
+        index += Character.charCount(s.codePointAt(index));
+      }
+      return index;
     }
-
-    /* GC: Me, Mn, Cf, Cc -> width = 0 */
-    final int category = Character.getType(codePoint);
-    if (category == Character.NON_SPACING_MARK | category == Character.ENCLOSING_MARK | category == Character.FORMAT | category == Character.CONTROL) {
-      return 0;
+  }
+  private static String __replace_all_fixed(String element, FixedSearch searcher, String replacement) {
+    final int patternLength = searcher.length();
+    int beginIndex = searcher.indexOf(element, 0);
+    if (beginIndex < 0) {
+      return element;
     }
-
-    /* Hangul Jamo medial vowels and final consonants have width 0 */
-    int hangul = UCharacter.getIntPropertyValue(codePoint, UProperty.HANGUL_SYLLABLE_TYPE);
-    if (hangul == HangulSyllableType.VOWEL_JAMO || hangul == HangulSyllableType.TRAILING_JAMO) {
-      return 0;
+    final StringBuilder replaced = new StringBuilder(element.length() + Math.max(0, replacement.length() - patternLength));
+    int previousStart = 0;
+    while (beginIndex != -1) {
+      replaced.append(element, previousStart, beginIndex);
+      replaced.append(replacement);
+      previousStart = beginIndex + patternLength;
+      beginIndex = searcher.indexOf(element, previousStart);
     }
+    replaced.append(element, previousStart, element.length());
+    return replaced.toString();
+  }
+  private static SEXP __replace_all_regex_vectorized(SEXP str, SEXP pattern, SEXP replacement, SEXP opts_regex, final ReplaceType replaces) {
+    final int flags = __regex_flags(opts_regex);
+    final int timeLimit = __regex_time_limit(opts_regex);
+    final int length = __recycling_rule(true, str, pattern, replacement);
+    final String[] result = new String[length];
+    final StringVector strings = __ensure_length(length, stri_prepare_arg_string(str, "str"));
+    final StringVector patterns = __ensure_length(length, stri_prepare_arg_string(pattern, "pattern"));
+    final StringVector replacements = __ensure_length(length, stri_prepare_arg_string(replacement, "replacement"));
 
-    /*
-     * Characters with the \code{UCHAR_EAST_ASIAN_WIDTH} enumerable property equal to \code{U_EA_FULLWIDTH} or \code{U_EA_WIDE} are of width 2.
-     */
-    int width = UCharacter.getIntPropertyValue(codePoint, UProperty.EAST_ASIAN_WIDTH);
-    if (width == EastAsianWidth.FULLWIDTH || width == EastAsianWidth.WIDE) {
-      return 2;
-    }
+    new ElementLoop<LastPattern<RegexMatcher>>(length) {
+      @Override
+      protected LastPattern<RegexMatcher> createState() {
+        return new LastPattern<RegexMatcher>();
+      }
+      @Override
+      protected void compute(int i, LastPattern<RegexMatcher> last) {
+        if (strings.isElementNA(i) || patterns.isElementNA(i) || replacements.isElementNA(i)) {
+          result[i] = StringVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final String searchPattern = patterns.getElementAsString(i);
+          final String replacement_i = replacements.getElementAsString(i);
+          if (!searchPattern.equals(last.pattern)) {
+            last.pattern = searchPattern;
+            last.matcher = __compile_regex(searchPattern, flags).matcher(element, timeLimit);
+          } else {
+            last.matcher.reset(element);
+          }
+          if (replaces.isAll()) {
+            result[i] = last.matcher.replaceAll(replacement_i);
+          } else if (replaces.isFirst()) {
+            result[i] = last.matcher.replaceFirst(replacement_i);
+          } else if (replaces.isLast()) {
+            int start = -1;
+            int end = -1;
+            while (last.matcher.find()) {
+              start = last.matcher.start();
+              end = last.matcher.end();
+            }
+            if (start < 0 || end < 0) {
+              result[i] = element;
+            } else {
+              result[i] = element.substring(0, start) + replacement_i + element.substring(end);
+            }
+          }
+        }
+      }
+    }.run();
 
-    /* any other characters have width 1 */
-    return 1;
+    return new StringArrayVector(result);
   }
-  private static SEXP __trans_isnf(SEXP str, Normalizer.Form form) {
-    final int length = str.length();
-    final Logical[] result = new Logical[length];
+  /**
+   * Range of the strings of a vector, for natives whose results are deferred, which do not wait
+   * for a full scan; others scan with CharRange.of()
+   */
+  private static CharRange __char_range(StringVector strings) {
+    return Deferred.isDeferred(strings.length()) ? CharRange.known(strings) : CharRange.of(strings);
+  }
+  private static SEXP __trans_isnf(SEXP str, final Normalizer2 normalizer) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = Logical.NA;
-      } else {
-        result[i] = Logical.valueOf(Normalizer.isNormalized(strings.getElementAsString(i), form));
+    return new DeferredLogicalVector(strings.length()) {
+      @Override
+      protected int compute(int i) {
+        if (strings.isElementNA(i)) {
+          return LogicalVector.NA;
+        } else {
+          return normalizer.isNormalized(strings.getElementAsString(i)) ? 1 : 0;
+        }
       }
-    }
-
-    return new LogicalArrayVector(result);
+    }.deferOrCompute();
   }
-  private static SEXP __trans_nf(SEXP str, Normalizer.Form form) {
-    final int length = str.length();
-    final String[] result = new String[length];
+  /**
+   * Strings already normalized (as most are) are returned as they are, having only been
+   * quick-checked; otherwise only what follows their longest normalized prefix is normalized.
+   */
+  private static SEXP __trans_nf(SEXP str, final Normalizer2 normalizer) {
     final StringVector strings = stri_prepare_arg_string(str, "str");
 
-    for (int i = 0; i < length; i++) {
-      if (strings.isElementNA(i)) {
-        result[i] = StringVector.NA;
-      } else {
-        result[i] = Normalizer.normalize(strings.getElementAsString(i), form);
+    return new DeferredStringVector(strings.length()) {
+      @Override
+      protected String compute(int i) {
+        if (strings.isElementNA(i)) {
+          return StringVector.NA;
+        } else {
+          final String element = strings.getElementAsString(i);
+          final int prefix = normalizer.spanQuickCheckYes(element);
+          if (prefix == element.length()) {
+            return element;
+          }
+          final StringBuilder normalized = new StringBuilder(element.length() + 16).append(element, 0, prefix);
+          return normalizer.normalizeSecondAndAppend(normalized, element.subSequence(prefix, element.length())).toString();
+        }
       }
+    }.deferOrCompute();
+  }
+  /**
+   * @return the strings with each code point above U+007F replaced by the substitute;
+   *         strings made of ASCII characters only are returned as they are
+   */
+  private static SEXP __replace_non_ascii(final StringVector strings, final char substitute) {
+    if (__char_range(strings).isAscii()) {
+      return strings;
     }
 
-    return new StringArrayVector(result);
+    return new DeferredStringVector(strings.length()) {
+      @Override
+      protected String compute(int i) {
+        if (strings.isElementNA(i)) {
+          return StringVector.NA;
+        }
+        final String element = strings.getElementAsString(i);
+        final int length = element.length();
+        int k = 0;
+        while (k < length && element.charAt(k) < 0x80) {
+          k++;
+        }
+        if (k == length) {
+          return element;
+        }
+        final StringBuilder replaced = new StringBuilder(length).append(element, 0, k);
+        while (k < length) {
+          final int c = element.codePointAt(k);
+          replaced.append(c < 0x80 ? (char) c : substitute);
+          k += Character.charCount(c);
+        }
+        return replaced.toString();
+      }
+    }.deferOrCompute();
   }
   private static BreakIterator __break_iterator_for_type(String breakType, Locale locale) {
     if ("character".equals(breakType)) {
@@ -1673,12 +3242,17 @@ public class stringi {
     }
     throw new EvalException("incorrect break iterator option specifier. see ?stri_opts_brkiter");
   }
+  /**
+   * @return a prototype break iterator for the given options, shared by all callers;
+   *         clone it before setting any text
+   */
   private static BreakIterator __open_break_iterator(SEXP opts_brkiter, String defaultType) {
+    final BreakIteratorKey key;
     if (Null.INSTANCE.equals(opts_brkiter)) {
       // use default locale
       // use default type
       // use no skip rules
-      return __break_iterator_for_type(defaultType, Locale.getDefault());
+      key = new BreakIteratorKey(defaultType, Locale.getDefault());
     } else if (opts_brkiter instanceof ListVector) {
       final ListVector options = (ListVector) opts_brkiter;
       final int indexType = options.getIndexByName("type");
@@ -1687,14 +3261,558 @@ public class stringi {
       if (-1 < knownTypes.indexOf(breakType)) {
         final int indexLocale = options.getIndexByName("locale");
         final Locale locale = (-1 < indexLocale) ? Locale.forLanguageTag(options.getElementAsString(indexLocale).trim()) : Locale.getDefault();
-        return __break_iterator_for_type(breakType, locale);
+        key = new BreakIteratorKey(breakType, locale);
       } else {
         // FIXME handle skip_* rules
-        return new RuleBasedBreakIterator(breakType);
+        key = new BreakIteratorKey(breakType, null);
       }
     } else {
       throw new EvalException("incorrect break iterator option specifier. see ?stri_opts_brkiter");
     }
+
+    BreakIterator prototype = BRKITER_CACHE.getIfPresent(key);
+    if (prototype == null) {
+      prototype = (key.locale == null) ? new RuleBasedBreakIterator(key.type) : __break_iterator_for_type(key.type, key.locale);
+      BRKITER_CACHE.put(key, prototype);
+    }
+    return prototype;
+  }
+  /**
+   * @return the locale of stri_opts_brkiter(), or the default one if it is not set
+   */
+  private static ULocale __break_iterator_locale(SEXP opts_brkiter) {
+    if (opts_brkiter instanceof ListVector) {
+      final ListVector options = (ListVector) opts_brkiter;
+      final int indexLocale = options.getIndexByName("locale");
+      if (-1 < indexLocale && !options.isElementNA(indexLocale) && !options.getElementAsString(indexLocale).trim().isEmpty()) {
+        return new ULocale(options.getElementAsString(indexLocale).trim());
+      }
+    }
+    return ULocale.getDefault();
+  }
+  /**
+   * @return the given locale, or the default one for NULL or ""
+   */
+  private static ULocale __prepare_arg_locale(SEXP locale, String argname) {
+    if (Null.INSTANCE.equals(locale)) {
+      return ULocale.getDefault();
+    }
+    final StringVector locales = stri_prepare_arg_string(locale, argname);
+    if (locales.length() <= 0 || locales.isElementNA(0)) {
+      throw new EvalException("missing value in argument `" + argname + "` is not supported");
+    }
+    final String tag = locales.getElementAsString(0).trim();
+    return tag.isEmpty() ? ULocale.getDefault() : new ULocale(tag);
+  }
+  /**
+   * @return the single string given, which must not be NA
+   */
+  private static String __prepare_arg_string_1(SEXP x, String argname) {
+    final StringVector strings = stri_prepare_arg_string(x, argname);
+    if (strings.length() <= 0) {
+      throw new EvalException("argument `" + argname + "` should be a single string");
+    }
+    if (strings.isElementNA(0)) {
+      throw new EvalException("missing value in argument `" + argname + "` is not supported");
+    }
+    return strings.getElementAsString(0);
+  }
+  /**
+   * @return the given encoding, or the default one for NULL or ""
+   */
+  private static Charset __prepare_arg_charset(SEXP encoding, String argname) {
+    if (Null.INSTANCE.equals(encoding)) {
+      return Charset.defaultCharset();
+    }
+    final String name = __prepare_arg_string_1(encoding, argname).trim();
+    if (name.isEmpty()) {
+      return Charset.defaultCharset();
+    }
+    Charset charset = CHARSET_CACHE.getIfPresent(name);
+    if (charset == null) {
+      try {
+        charset = Charset.forName(name);
+      } catch (IllegalArgumentException e) { // illegal or unsupported charset name
+        throw new EvalException("encoding `" + name + "` is not supported");
+      }
+      CHARSET_CACHE.put(name, charset);
+    }
+    return charset;
+  }
+  /**
+   * @return the existing, regular file named by the argument
+   */
+  private static File __prepare_arg_file(SEXP fname, String argname) {
+    final File file = new File(__prepare_arg_string_1(fname, argname));
+    if (!file.isFile()) {
+      throw new EvalException("file `" + file + "` does not exist");
+    }
+    return file;
+  }
+  private static LineReader __prepare_arg_line_reader(SEXP con) {
+    if (!(con instanceof ExternalPtr) || !(((ExternalPtr<?>) con).getInstance() instanceof LineReader)) {
+      throw new EvalException("argument `con` is not a line reader");
+    }
+    return (LineReader) ((ExternalPtr<?>) con).getInstance();
+  }
+  /**
+   * Encode chars into the buffer, writing it out to the channel whenever it is full
+   */
+  private static void __encode_to_channel(CharBuffer chars, CharsetEncoder encoder, ByteBuffer buffer,
+      FileChannel channel, boolean endOfInput) throws IOException {
+    while (encoder.encode(chars, buffer, endOfInput).isOverflow()) {
+      __drain_to_channel(buffer, channel);
+    }
+    if (endOfInput) {
+      while (encoder.flush(buffer).isOverflow()) {
+        __drain_to_channel(buffer, channel);
+      }
+    }
+  }
+  private static void __drain_to_channel(ByteBuffer buffer, FileChannel channel) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+  /**
+   * @return the raw vectors given, as a list in which NULL stands for NA; null if x is neither
+   *         a raw vector nor a list
+   */
+  private static ListVector __prepare_arg_list_raw(SEXP x, String argname) {
+    if (x instanceof RawVector) {
+      return new ListVector(x);
+    } else if (!(x instanceof ListVector)) {
+      return null;
+    }
+    final ListVector list = (ListVector) x;
+    for (int i = 0; i < list.length(); i++) {
+      final SEXP element = list.getElementAsSEXP(i);
+      if (!(element instanceof RawVector) && !Null.INSTANCE.equals(element)) {
+        throw new EvalException("all elements in `" + argname + "` should be raw vectors or NULLs");
+      }
+    }
+    return list;
+  }
+  /**
+   * Guess the encodings of raw vectors or strings (which are taken as UTF-8, the strings
+   * having been decoded already)
+   *
+   * @param locale
+   *          for is_restricted, the language guesses of 8-bit charsets must be of, or null
+   *          to guess Unicode charsets only
+   * @param is_restricted
+   *          whether the guesses are restricted (as by stri_enc_detect2), in which case
+   *          ASCII input is guessed to be US-ASCII first and languages are not reported
+   * @return a data frame of guesses per element
+   */
+  private static SEXP __enc_detect(SEXP str, final LogicalVector filters, ULocale locale, final boolean is_restricted) {
+    final ListVector inputs = __prepare_arg_list_raw(str, "str");
+    final StringVector strings = (inputs == null) ? stri_prepare_arg_string(str, "str") : null;
+    final int length = __recycling_rule(true, (inputs != null) ? inputs : strings, filters);
+    final String language = (locale == null) ? null : locale.getLanguage();
+    final SEXP[] result = new SEXP[length];
+
+    new ElementLoop<EncodingDetector>(length) {
+      @Override
+      protected EncodingDetector createState() {
+        return new EncodingDetector();
+      }
+      @Override
+      protected void compute(int i, EncodingDetector detector) {
+        final int k = i % ((inputs != null) ? inputs.length() : strings.length());
+        final Logical filter = filters.getElementAsLogical(i % filters.length());
+        if ((inputs != null) ? Null.INSTANCE.equals(inputs.getElementAsSEXP(k)) : strings.isElementNA(k)) {
+          result[i] = __encoding_guesses(new String[] { StringVector.NA }, new String[] { StringVector.NA },
+              new double[] { DoubleVector.NA }, 1);
+          return;
+        }
+        final CharsetMatch[] matches = (inputs != null)
+            ? detector.detect((RawVector) inputs.getElementAsSEXP(k), filter == Logical.TRUE)
+            : detector.detect(strings.getElementAsString(k).getBytes(StandardCharsets.UTF_8), filter == Logical.TRUE);
+        final int size = matches.length + 1;
+        final String[] encodings = new String[size];
+        final String[] languages = new String[size];
+        final double[] confidences = new double[size];
+        int count = 0;
+        if (is_restricted && detector.wasAscii()) {
+          encodings[count] = "US-ASCII";
+          languages[count] = StringVector.NA;
+          confidences[count++] = 1.0;
+        }
+        for (CharsetMatch match : matches) {
+          final String name = match.getName();
+          if (is_restricted && !name.startsWith("UTF-") && (language == null || !language.equals(match.getLanguage()))) {
+            continue;
+          }
+          encodings[count] = name;
+          languages[count] = (is_restricted || match.getLanguage() == null) ? StringVector.NA : match.getLanguage();
+          confidences[count++] = match.getConfidence() / 100.0;
+        }
+        if (count == 0) {
+          encodings[count] = StringVector.NA;
+          languages[count] = StringVector.NA;
+          confidences[count++] = DoubleVector.NA;
+        }
+        result[i] = __encoding_guesses(encodings, languages, confidences, count);
+      }
+    }.run();
+
+    return new ListVector(result);
+  }
+  /**
+   * @return a data frame of the first count guesses, with columns Encoding, Language and Confidence
+   */
+  private static SEXP __encoding_guesses(String[] encodings, String[] languages, double[] confidences, int count) {
+    final int[] row_names = new int[count];
+    for (int r = 0; r < count; r++) {
+      row_names[r] = r + 1;
+    }
+    return new ListVector.NamedBuilder()
+        .add("Encoding", new StringArrayVector(Arrays.copyOf(encodings, count)))
+        .add("Language", new StringArrayVector(Arrays.copyOf(languages, count)))
+        .add("Confidence", new DoubleArrayVector(Arrays.copyOf(confidences, count)))
+        .setAttribute(Symbols.CLASS, StringVector.valueOf("data.frame"))
+        .setAttribute(Symbols.ROW_NAMES, new IntArrayVector(row_names))
+        .build();
+  }
+  /**
+   * @return the properties of a charset reported by stri_enc_info, worked out only once per charset
+   */
+  private static SEXP __charset_info(Charset charset) {
+    SEXP info = CHARSET_INFO_CACHE.getIfPresent(charset);
+    if (info == null) {
+      info = __build_charset_info(charset);
+      CHARSET_INFO_CACHE.put(charset, info);
+    }
+    return info;
+  }
+  private static SEXP __build_charset_info(Charset charset) {
+    final CharsetEncoder encoder = charset.newEncoder();
+    final CharsetDecoder decoder = charset.newDecoder();
+    boolean ascii_subset = true;
+    for (char c = 0; c < 128 && ascii_subset; c++) {
+      final byte[] encoded = String.valueOf(c).getBytes(charset);
+      ascii_subset = encoder.canEncode(c) && encoded.length == 1 && encoded[0] == c;
+    }
+    final boolean is_8bit = encoder.maxBytesPerChar() <= 1.0f;
+    Logical unicode_1to1 = Logical.NA;
+    if (is_8bit) {
+      unicode_1to1 = Logical.TRUE;
+      for (int b = 0; b < 256 && unicode_1to1 == Logical.TRUE; b++) {
+        try {
+          final CharBuffer decoded = decoder.reset().decode(ByteBuffer.wrap(new byte[] { (byte) b }));
+          final ByteBuffer encoded = encoder.reset().encode(decoded);
+          if (encoded.remaining() != 1 || encoded.get(0) != (byte) b) {
+            unicode_1to1 = Logical.FALSE;
+          }
+        } catch (CharacterCodingException e) {
+          unicode_1to1 = Logical.FALSE;
+        }
+      }
+    }
+    return new ListVector.NamedBuilder()
+        .add("Name.friendly", StringVector.valueOf(charset.name()))
+        .add("Name.JAVA", StringVector.valueOf(charset.name()))
+        .add("ASCII.subset", LogicalVector.valueOf(ascii_subset))
+        .add("Unicode.1to1", new LogicalArrayVector(unicode_1to1))
+        .add("CharSize.8bit", LogicalVector.valueOf(is_8bit))
+        .add("CharSize.min", IntVector.valueOf(1))
+        .add("CharSize.max", IntVector.valueOf((int) Math.ceil(encoder.maxBytesPerChar())))
+        .build();
+  }
+  /**
+   * @return a frozen collator configured by stri_opts_collator(), or null if opts_collator
+   *         is NA, which requests plain code point comparison; the collator is opened only
+   *         once for the same settings (and default locale)
+   */
+  private static Collator __open_collator(SEXP opts_collator) {
+    if (opts_collator instanceof LogicalVector && opts_collator.length() == 1 && ((AtomicVector) opts_collator).isElementNA(0)) {
+      return null;
+    }
+    if (!Null.INSTANCE.equals(opts_collator) && !(opts_collator instanceof ListVector)) {
+      throw new EvalException("incorrect collator option specifier. see ?stri_opts_collator");
+    }
+
+    final StringBuilder key = new StringBuilder(ULocale.getDefault().toString());
+    final int narg = opts_collator.length();
+    if (narg > 0) {
+      final ListVector options = (ListVector) opts_collator;
+      final StringVector names = (StringVector) opts_collator.getAttribute(Symbols.NAMES);
+      if (names == null || narg != names.length()) {
+        throw new EvalException("incorrect collator option specifier. see ?stri_opts_collator");
+      }
+      final String knownSettings = "|locale|strength|alternate_shifted|french|uppercase_first|case_level|normalization|numeric|";
+      for (int i = 0; i < narg; i++) {
+        if (names.isElementNA(i)) {
+          throw new EvalException("incorrect collator option specifier. see ?stri_opts_collator");
+        }
+        final String name = names.getElementAsString(i);
+        if (knownSettings.indexOf("|" + name + "|") < 0) {
+          Native.currentContext().warn("incorrect opts_collator setting: `" + name + "`. ignoring");
+        } else {
+          final String value = (options.getElementAsSEXP(i).length() > 0) ? options.getElementAsString(i) : "";
+          key.append('\u0000').append(name).append('=').append(value);
+        }
+      }
+    }
+
+    Collator collator = COLLATOR_CACHE.getIfPresent(key.toString());
+    if (collator == null) {
+      collator = __build_collator(opts_collator);
+      COLLATOR_CACHE.put(key.toString(), collator);
+    }
+    return collator;
+  }
+  /**
+   * @return the collator of __open_collator(), which must be a rule-based one for a StringSearch
+   */
+  private static RuleBasedCollator __open_search_collator(SEXP opts_collator) {
+    final Collator collator = __open_collator(opts_collator);
+    if (!(collator instanceof RuleBasedCollator)) {
+      throw new EvalException("incorrect collator option specifier. see ?stri_opts_collator");
+    }
+    return (RuleBasedCollator) collator;
+  }
+  /**
+   * @return a new frozen collator for the settings of opts_collator, already validated by __open_collator
+   */
+  private static Collator __build_collator(SEXP opts_collator) {
+    final int narg = opts_collator.length();
+    if (narg <= 0) { // no custom settings - use default Collator
+      return Collator.getInstance(ULocale.getDefault()).freeze();
+    }
+
+    final ListVector options = (ListVector) opts_collator;
+    final StringVector names = (StringVector) opts_collator.getAttribute(Symbols.NAMES);
+
+    // fetch the locale first, the other settings are applied to the collator opened for it
+    ULocale locale = ULocale.getDefault();
+    for (int i = 0; i < narg; i++) {
+      if ("locale".equals(names.getElementAsString(i)) && options.getElementAsSEXP(i).length() > 0) {
+        final String tag = options.getElementAsString(i);
+        if (tag != null && !tag.trim().isEmpty()) {
+          locale = new ULocale(tag.trim());
+        }
+      }
+    }
+
+    final RuleBasedCollator collator = (RuleBasedCollator) Collator.getInstance(locale);
+    for (int i = 0; i < narg; i++) {
+      final String name = names.getElementAsString(i);
+      if ("locale".equals(name)) {
+        continue;
+      } else if ("uppercase_first".equals(name)) {
+        final Logical value = options.getElementAsLogical(i);
+        if (value == Logical.NA) {
+          collator.setUpperCaseFirst(false);
+        } else if (value == Logical.TRUE) {
+          collator.setUpperCaseFirst(true);
+        } else {
+          collator.setLowerCaseFirst(true);
+        }
+        continue;
+      }
+      if (options.isElementNA(i)) {
+        throw new EvalException("missing value in argument `" + name + "` is not supported");
+      }
+      if ("strength".equals(name)) {
+        final int value = options.getElementAsInt(i);
+        if (value <= 1) {
+          collator.setStrength(Collator.PRIMARY);
+        } else if (value == 2) {
+          collator.setStrength(Collator.SECONDARY);
+        } else if (value == 3) {
+          collator.setStrength(Collator.TERTIARY);
+        } else if (value == 4) {
+          collator.setStrength(Collator.QUATERNARY);
+        } else {
+          collator.setStrength(Collator.IDENTICAL);
+        }
+      } else if ("alternate_shifted".equals(name)) {
+        collator.setAlternateHandlingShifted(options.getElementAsLogical(i).toBooleanStrict());
+      } else if ("french".equals(name)) {
+        collator.setFrenchCollation(options.getElementAsLogical(i).toBooleanStrict());
+      } else if ("case_level".equals(name)) {
+        collator.setCaseLevel(options.getElementAsLogical(i).toBooleanStrict());
+      } else if ("normalization".equals(name)) {
+        collator.setDecomposition(options.getElementAsLogical(i).toBooleanStrict()
+            ? Collator.CANONICAL_DECOMPOSITION : Collator.NO_DECOMPOSITION);
+      } else if ("numeric".equals(name)) {
+        collator.setNumericCollation(options.getElementAsLogical(i).toBooleanStrict());
+      }
+    }
+    return collator.freeze();
+  }
+  /**
+   * Compare two strings in code point order (String.compareTo compares UTF-16 code units,
+   * which puts supplementary characters before U+E000..U+FFFF)
+   */
+  private static int __compare_codepoints(String s1, String s2) {
+    final int n = Math.min(s1.length(), s2.length());
+    for (int i = 0; i < n; i++) {
+      char c1 = s1.charAt(i);
+      char c2 = s2.charAt(i);
+      if (c1 != c2) {
+        if (c1 >= Character.MIN_SURROGATE && c2 >= Character.MIN_SURROGATE) {
+          // move the surrogates above the rest of the BMP
+          c1 += (c1 <= Character.MAX_SURROGATE) ? 0x2000 : -0x800;
+          c2 += (c2 <= Character.MAX_SURROGATE) ? 0x2000 : -0x800;
+        }
+        return c1 - c2;
+      }
+    }
+    return s1.length() - s2.length();
+  }
+  /**
+   * @param collator
+   *          elements are equal if the collator says so (and their collation keys are then
+   *          equal too), or if they consist of the same code points (for a null collator)
+   * @param eager
+   *          whether to compute all the collation key hashes up front (in parallel, if enabled);
+   *          otherwise each one is computed when its element is added to the set
+   * @return an empty set of non-NA elements of strings
+   */
+  private static IndexSet __string_index_set(final StringVector strings, final Collator collator, final boolean eager) {
+    final int length = strings.length();
+    if (collator == null) {
+      return new IndexSet(length) {
+        @Override
+        protected int hash(int i) {
+          return strings.getElementAsString(i).hashCode();
+        }
+        @Override
+        protected boolean equal(int i, int j) {
+          return strings.getElementAsString(i).equals(strings.getElementAsString(j));
+        }
+      };
+    }
+
+    final int[] hashes = new int[length];
+    final Collator thawed = collator.cloneAsThawed();
+    if (eager) {
+      new ElementLoop<Collator>(length) {
+        @Override
+        protected Collator createState() {
+          return collator.cloneAsThawed();
+        }
+        @Override
+        protected void compute(int i, Collator col) {
+          if (!strings.isElementNA(i)) {
+            hashes[i] = __hash_collation_key(col.getRawCollationKey(strings.getElementAsString(i), null));
+          }
+        }
+      }.run();
+    }
+    return new IndexSet(length) {
+      private final RawCollationKey key = new RawCollationKey();
+      @Override
+      protected void prepare(int i) {
+        if (!eager) {
+          hashes[i] = __hash_collation_key(thawed.getRawCollationKey(strings.getElementAsString(i), key));
+        }
+      }
+      @Override
+      protected int hash(int i) {
+        return hashes[i];
+      }
+      @Override
+      protected boolean equal(int i, int j) {
+        return thawed.compare(strings.getElementAsString(i), strings.getElementAsString(j)) == 0;
+      }
+    };
+  }
+  /**
+   * RawCollationKey.hashCode() depends on the capacity of its buffer, not just the key
+   */
+  private static int __hash_collation_key(RawCollationKey key) {
+    int h = 1;
+    for (int k = 0; k < key.size; k++) {
+      h = 31 * h + key.bytes[k];
+    }
+    return h;
+  }
+  private static SEXP __order_or_sort(SEXP str, SEXP decreasing, SEXP na_last, SEXP opts_collator, boolean is_sorting) {
+    final boolean is_decreasing = ((AtomicVector) decreasing).getElementAsLogical(0).toBooleanStrict();
+    final Logical na_placement = ((AtomicVector) na_last).getElementAsLogical(0);
+    final StringVector strings = stri_prepare_arg_string(str, "str");
+    final Collator collator = __open_collator(opts_collator);
+    final int length = strings.length();
+
+    int[] order = new int[length];
+    int k = 0;
+    int na_count = 0;
+    for (int i = 0; i < length; i++) {
+      if (strings.isElementNA(i)) {
+        na_count++;
+      } else {
+        order[k++] = i;
+      }
+    }
+    order = Arrays.copyOf(order, k);
+
+    final int sign = is_decreasing ? -1 : 1;
+    final IndexSort sorter;
+    if (collator == null) {
+      final String[] values = new String[length];
+      for (int i : order) {
+        values[i] = strings.getElementAsString(i);
+      }
+      sorter = new IndexSort() {
+        @Override
+        protected int compare(int i, int j) {
+          return sign * __compare_codepoints(values[i], values[j]);
+        }
+      };
+    } else {
+      // one sort key per element instead of O(n log n) Collator.compare calls
+      final RawCollationKey[] keys = new RawCollationKey[length];
+      new ElementLoop<Collator>(length) {
+        @Override
+        protected Collator createState() {
+          return collator.cloneAsThawed();
+        }
+        @Override
+        protected void compute(int i, Collator col) {
+          if (!strings.isElementNA(i)) {
+            keys[i] = col.getRawCollationKey(strings.getElementAsString(i), null);
+          }
+        }
+      }.run();
+      sorter = new IndexSort() {
+        @Override
+        protected int compare(int i, int j) {
+          return sign * keys[i].compareTo(keys[j]);
+        }
+      };
+    }
+    sorter.sort(order, ElementLoop.parallelPool(Native.currentContext(), k));
+
+    final int na_kept = (na_placement == Logical.NA) ? 0 : na_count;
+    final int na_offset = (na_placement == Logical.FALSE) ? na_kept : 0;
+    final int na_start = (na_placement == Logical.FALSE) ? 0 : k;
+    if (is_sorting) {
+      final String[] result = new String[k + na_kept];
+      for (int j = 0; j < k; j++) {
+        result[na_offset + j] = strings.getElementAsString(order[j]);
+      }
+      // NA elements are null already
+      return new StringArrayVector(result);
+    } else {
+      final int[] result = new int[k + na_kept];
+      for (int j = 0; j < k; j++) {
+        result[na_offset + j] = order[j] + 1; // 1-based indices
+      }
+      if (na_kept > 0) {
+        for (int i = 0, j = na_start; i < length; i++) {
+          if (strings.isElementNA(i)) {
+            result[j++] = i + 1;
+          }
+        }
+      }
+      return new IntArrayVector(result);
+    }
   }
   private static SEXP __join2_with_collapse(SEXP s1, SEXP s2, SEXP collapse) {
     if (Null.INSTANCE.equals(collapse)) {
@@ -1715,21 +3833,23 @@ public class stringi {
     final StringVector e1 = __ensure_length(length, stri_prepare_arg_string(s1, "e1"));
     final StringVector e2 = __ensure_length(length, stri_prepare_arg_string(s2, "e2"));
 
+    final String collapser = collapsers.getElementAsString(0);
+    long size = (long) (length - 1) * collapser.length();
     for (int i = 0; i < length; i++) {
       if (e1.isElementNA(i) || e2.isElementNA(i)) {
         return __string_vector_NA(1);
       }
+      size += e1.getElementAsString(i).length() + e2.getElementAsString(i).length();
     }
-    final String collapser = collapsers.getElementAsString(0);
-    final StringBuffer sb = new StringBuffer();
+    final StringAssembler assembler = new StringAssembler().reset(size);
     for (int i = 0; i < length; i++) {
-      sb.append(e1.getElementAsString(i));
-      sb.append(e2.getElementAsString(i));
-      sb.append(collapser);
+      if (i > 0) {
+        assembler.append(collapser);
+      }
+      assembler.append(e1.getElementAsString(i)).append(e2.getElementAsString(i));
     }
-    sb.setLength(sb.length() - collapser.length());
 
-    return StringVector.valueOf(sb.toString());
+    return StringVector.valueOf(assembler.toString());
   }
   private static SEXP __join_no_collapse(SEXP strlist, SEXP sep, SEXP ignore_null) {
     final boolean ignore_empty = ((AtomicVector) ignore_null).getElementAsLogical(0).toBooleanStrict();
@@ -1762,7 +3882,7 @@ public class stringi {
       Arrays.fill(whichNA, false);
       final StringVector[] vectorized = new StringVector[strlist_length];
       for (int j = 0; j < strlist_length; j++) {
-        vectorized[j] = __ensure_length(vectorize_length, stri_prepare_arg_string(strlist.getElementAsSEXP(j), "strlist" + j));
+        vectorized[j] = __ensure_length(vectorize_length, stri_prepare_arg_string(lists.getElementAsSEXP(j), "strlist" + j));
         for (int i = 0; i < vectorize_length; i++) {
           if (vectorized[j].isElementNA(i)) {
             whichNA[i] = true;
@@ -1770,18 +3890,23 @@ public class stringi {
         }
       }
       final String separator = separators.getElementAsString(0);
+      final long separators_size = (long) (strlist_length - 1) * separator.length();
       final String[] result = new String[vectorize_length];
+      final StringAssembler assembler = new StringAssembler();
 
       for (int i = 0; i < vectorize_length; i++) {
         if (whichNA[i]) {
           result[i] = StringVector.NA;
         } else {
-          final StringBuffer sb = new StringBuffer(vectorized[0].getElementAsString(i));
+          long size = separators_size;
+          for (int j = 0; j < strlist_length; j++) {
+            size += vectorized[j].getElementAsString(i).length();
+          }
+          assembler.reset(size).append(vectorized[0].getElementAsString(i));
           for (int j = 1; j < strlist_length; j++) {
-            sb.append(separator);
-            sb.append(vectorized[j].getElementAsString(i));
+            assembler.append(separator).append(vectorized[j].getElementAsString(i));
           }
-          result[i] = sb.toString();
+          result[i] = assembler.toString();
         }
       }
 